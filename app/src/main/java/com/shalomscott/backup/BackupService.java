@@ -3,41 +3,81 @@ package com.shalomscott.backup;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.job.JobInfo;
 import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
 import android.app.job.JobService;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.database.SQLException;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Environment;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.Metadata;
 import com.google.android.gms.drive.internal.StringListResponse;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import com.shalomscott.backup.Utils.BackupEngine;
+import com.shalomscott.backup.Utils.BackupOptions;
+import com.shalomscott.backup.Utils.BackupPipeline;
+import com.shalomscott.backup.Utils.BundleWriter;
+import com.shalomscott.backup.Utils.Checkpoint;
+import com.shalomscott.backup.Utils.Compression;
+import com.shalomscott.backup.Utils.DeltaSync;
+import com.shalomscott.backup.Utils.DriveBackend;
 import com.shalomscott.backup.Utils.DriveUtils;
+import com.shalomscott.backup.Utils.FolderCache;
+import com.shalomscott.backup.Utils.FolderListing;
+import com.shalomscott.backup.Utils.HashIndex;
 import com.shalomscott.backup.Utils.JsapParser;
+import com.shalomscott.backup.Utils.LocalFiles;
+import com.shalomscott.backup.Utils.ObjectStore;
+import com.shalomscott.backup.Utils.PipelinedFolders;
+import com.shalomscott.backup.Utils.ResumePolicy;
+import com.shalomscott.backup.Utils.RunHistory;
+import com.shalomscott.backup.Utils.RunStats;
+import com.shalomscott.backup.Utils.Settings;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 import static com.shalomscott.backup.Utils.FileUtils.*;
+import static com.shalomscott.backup.Utils.LocalFiles.*;
 
 
-public class BackupService extends JobService implements DriveUtils.OnConnectListener,
-        Runnable {
+public class BackupService extends JobService implements BackupPipeline.CheckpointListener,
+        BundleWriter.SegmentUploader, Runnable {
     private static final String TAG = "BackupService";
     private static final String ACTION_CANCEL = "com.shalomscott.backup.cancel";
 
-    // The service's notification builder
+    // Id of the one-off job that resumes a run the system stopped
+    private static final int JOB_ID_RESUME = 3;
+    // How long a run waits for Google Drive once its own setup is done
+    private static final long CONNECT_TIMEOUT_MILLIS = 60 * 1000;
+
+    // The service's notification builder, guarded by notifyLock. Upload workers post progress
+    // while they hold an upload slot, so the lock must never be held waiting for one
+    private final Object notifyLock = new Object();
     private NotificationCompat.Builder notifyBuilder;
     // The notification's cancel action
     private NotificationCompat.Action cancel;
@@ -54,7 +94,56 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
     private boolean manualStart;
 
     private boolean isRunning = false;
-    private boolean isCanceled = false;
+    // Written by the main thread, read by the pipeline's threads
+    private volatile boolean isCanceled = false;
+    // Set when the system stops the job; the run winds down and a resume job takes over
+    private volatile boolean isStopped = false;
+    // Set by the run thread once every line of 'backup' has been walked
+    private volatile boolean walkFinished = false;
+
+    // Walks, hashes and uploads the current run's files
+    private volatile BackupPipeline<PipelinedFolders.Pending<FolderListing>> pipeline;
+
+    // Digests of everything backed up so far, loaded once per run
+    private HashIndex hashIndex;
+
+    // Where the run's progress is saved, and the stamp of the 'backup' file it applies to
+    private File checkpointFile;
+    private String checkpointStamp;
+    // Stopped runs in a row, ending with this one, that finished no files. Set by the run
+    // thread before the pipeline is, and then only by onStopJob
+    private volatile int stalls;
+
+    // Files on --delta lines smaller than this are always uploaded whole
+    private long deltaMinSize;
+    // Deltas a file may pile up before it is uploaded whole again
+    private int deltaMaxChain;
+
+    // Least a sample must shrink by, in percent, for a --compress file to be gzipped
+    private int compressMinSaving;
+
+    // Re-applies the upload rate whenever the network changes, since metered ones have their own
+    private ConnectivityManager.NetworkCallback networkCallback;
+    // Guards the rate settings below, which the network callback reads on the main thread
+    private final Object rateLock = new Object();
+    private Settings rateSettings;
+    private long rateSettingsModified;
+
+    // Opened by the first file on a --dedup line. Guarded by objectStoreLock
+    private final Object objectStoreLock = new Object();
+    private ObjectStore objectStore;
+
+    // Files on --bundle lines up to this size are packed into bundles of about the target size
+    private long bundleMaxFileSize;
+    private long bundleTargetSize;
+    // Opened by the first file to be bundled, along with the folder bundles go to. Guarded by
+    // bundleLock, and read unlocked once set
+    private final Object bundleLock = new Object();
+    private volatile BundleWriter bundleWriter;
+    private FolderListing bundleFolder;
+    // Set once a bundle fails to upload. Its files count as done in the pipeline, so from
+    // then on no checkpoint can be trusted to skip them
+    private volatile boolean bundleFailed = false;
 
     @Override
     public void onCreate() {
@@ -91,11 +180,14 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (ACTION_CANCEL.equals(intent.getAction())) {
             isCanceled = true;
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
         } else {
             if (!isRunning) {
-                DriveUtils.connect(this, this); // Connect the google API client
                 manualStart = true;
                 isRunning = true;
+                startRun();
             } else {
                 Toast.makeText(this, "The service is already running", Toast.LENGTH_SHORT).show();
             }
@@ -106,10 +198,10 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
     @Override
     public boolean onStartJob(JobParameters params) {
         if (!isRunning) {
-            DriveUtils.connect(this, this); // Connect the google API client
             manualStart = false;
             jobParams = params;
             isRunning = true;
+            startRun();
             return true; // TRUE means the job's process is still in use (separate thread)
         } else {
             Toast.makeText(this, "The service is already running", Toast.LENGTH_SHORT).show();
@@ -119,22 +211,37 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
 
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        // TODO: implement this (when job gets canceled I think)
-        return true;
+        isStopped = true;
+        BackupPipeline<PipelinedFolders.Pending<FolderListing>> running = pipeline;
+        if (running == null) {
+            return true; // Stopped before any work began, let the scheduler retry it
+        }
+
+        // Stop at the next file boundary. Saving progress flushes the index and may upload a
+        // bundle, so it is left to the run thread, which does it as soon as its walk stops
+        running.cancel();
+        boolean madeProgress = running.getCompletedCount() > 0;
+        int stalled = madeProgress ? 0 : stalls + 1;
+        stalls = stalled;
+
+        long delay = ResumePolicy.delayMillis(madeProgress, stalled, walkFinished,
+                running.getOutstandingCount());
+        scheduleResume(delay);
+        return false; // Rescheduled above, with a delay fitted to the work left
     }
 
-    @Override
-    public void onConnect(DriveUtils.ConnectResult result) {
-        if (result.success) {
-            (new Thread(this)).start();
-        } else {
-            showErrorNotification("Error connecting to Google Drive");
-            endService();
-        }
+    // Starts connecting to Google Drive, and the run alongside it. The run sets itself up
+    // while the connection comes up, and only waits for it when it is ready to upload
+    private void startRun() {
+        DriveUtils.connect(this, null);
+        (new Thread(this)).start();
     }
 
     @Override
     public void run() {
+        RunStats stats = RunStats.start();
+        long runStart = System.nanoTime();
+
         // Ensure app's config files are in place (create if necessary)
         if (!ensureFiles()) {
             showErrorNotification("Could not set up app's configuration files");
@@ -142,7 +249,118 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
             return;
         }
 
+        try {
+            hashIndex = openHashIndex(this);
+        } catch (IOException e) {
+            showErrorNotification(e.getMessage());
+            endService();
+            return;
+        }
+
+        // The folder cache is only an optimization, so run without it if it can't be read
+        FolderCache folderCache = null;
+        try {
+            folderCache = openFolderCache(this);
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage());
+        }
+        DriveUtils.setFolderCache(folderCache);
+
+        Settings settings;
+        try {
+            settings = Settings.load(getConfigFile(this, "settings"));
+        } catch (IOException e) {
+            showErrorNotification("Could not read 'settings'");
+            endService();
+            return;
+        }
+
+        hashIndex.setBatch(
+                settings.getInt(Settings.INDEX_BATCH_FILES, HashIndex.DEFAULT_BATCH_FILES),
+                settings.getLong(Settings.INDEX_BATCH_SECONDS,
+                        HashIndex.DEFAULT_BATCH_MILLIS / 1000) * 1000);
+
+        deltaMinSize = settings.getLong(Settings.DELTA_MIN_SIZE, Settings.DEFAULT_DELTA_MIN_SIZE);
+        deltaMaxChain = Math.max(0,
+                settings.getInt(Settings.DELTA_MAX_CHAIN, Settings.DEFAULT_DELTA_MAX_CHAIN));
+
+        compressMinSaving = settings.getInt(Settings.COMPRESS_MIN_SAVING,
+                Settings.DEFAULT_COMPRESS_MIN_SAVING);
+        bundleMaxFileSize = settings.getLong(Settings.BUNDLE_MAX_FILE_SIZE,
+                Settings.DEFAULT_BUNDLE_MAX_FILE_SIZE);
+        bundleTargetSize = settings.getLong(Settings.BUNDLE_TARGET_SIZE,
+                Settings.DEFAULT_BUNDLE_TARGET_SIZE);
+
+        synchronized (rateLock) {
+            rateSettings = settings;
+            rateSettingsModified = getConfigFile(this, "settings").lastModified();
+        }
+        applyRateLimit();
+        registerNetworkCallback();
+
+        int hashThreads = Math.max(1, settings.getInt(Settings.HASH_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        int uploadThreads = Math.max(1,
+                settings.getInt(Settings.UPLOAD_THREADS, Settings.DEFAULT_UPLOAD_THREADS));
+        int queueSize = Math.max(1,
+                settings.getInt(Settings.QUEUE_SIZE, Settings.DEFAULT_QUEUE_SIZE));
+        // The upload stage gets a worker per slot, and the adaptive limit decides how many of
+        // them are uploading at any moment
+        DriveUtils.getUploadConcurrency().setMaxLimit(uploadThreads);
+
+        // Pick up where an interrupted run left off, unless 'backup' has changed since
         File backupFile = getConfigFile(this, "backup");
+        checkpointFile = getCheckpointFile(this);
+        checkpointStamp = Checkpoint.stampOf(backupFile);
+        Checkpoint resume = null;
+        try {
+            resume = Checkpoint.load(checkpointFile, checkpointStamp);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the checkpoint, starting from the top", e);
+        }
+        stalls = (resume != null) ? resume.stalls : 0;
+
+        // The walk only starts each folder's lookup, and the upload stage waits for it
+        DriveUtils.setCallTimeout(settings.getLong(Settings.CALL_TIMEOUT_SECONDS,
+                Settings.DEFAULT_CALL_TIMEOUT_SECONDS) * 1000);
+        DriveBackend backend = new DriveBackend();
+        pipeline = new BackupPipeline<>(new PipelinedFolders<>(newEngine(backend), backend),
+                hashThreads, uploadThreads, queueSize);
+        if (isCanceled || isStopped) {
+            pipeline.cancel();
+        }
+        if (resume != null) {
+            Log.i(TAG, "Resuming from line " + resume.line + " after " + resume.cursor + " ("
+                    + resume.inFlight.size() + " files were in flight)");
+            pipeline.resumeFrom(resume);
+        }
+        pipeline.setCheckpointListener(this,
+                settings.getLong(Settings.CHECKPOINT_SECONDS, Settings.DEFAULT_CHECKPOINT_SECONDS)
+                        * 1000);
+
+        DriveUtils.ConnectResult connected = null;
+        try {
+            connected = DriveUtils.awaitConnection(this, CONNECT_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (connected == null || !connected.success) {
+            unregisterNetworkCallback();
+            try {
+                hashIndex.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save the hash index", e);
+            }
+            showErrorNotification("Error connecting to Google Drive");
+            endService();
+            return;
+        }
+        pipeline.start();
+
+        // Set if the walk itself fails. Shown only once the pipeline has drained, so a late
+        // progress update can't replace it
+        String walkError = null;
+
         try (
                 BufferedReader backupReader = new BufferedReader(new FileReader(backupFile))
         ) {
@@ -155,6 +373,11 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
                     continue;
                 }
 
+                // Skip the lines an earlier run already finished
+                if (resume != null && lineCounter < resume.line) {
+                    continue;
+                }
+
                 JSAPResult result = jsap.parse(line);
 
                 if (result.success()) {
@@ -162,34 +385,129 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
                     File file = getPublicFile(filepath);
 
                     if (!file.exists()) {
-                        showErrorNotification("Could not find file/directory specified on line "
-                                + lineCounter + " of 'backup'");
+                        walkError = "Could not find file/directory specified on line "
+                                + lineCounter + " of 'backup'";
                         break;
                     } else {
                         showProgressNotification("Processing " + file.getName());
-                        processFile(file, null);
+                        File resumeAfter = (resume != null && lineCounter == resume.line
+                                && resume.cursor != null) ? new File(resume.cursor) : null;
+                        RunStats.RootStats root = stats.root(lineCounter, file.getPath());
+                        long walkStart = System.nanoTime();
+                        // Only the walker's own work: the hash and upload stages add theirs
+                        long walkBusy = pipeline.walk(file, null,
+                                new BackupOptions(result, lineCounter), resumeAfter);
+                        stats.phase(RunStats.PHASE_WALK, walkStart);
+                        root.busyNanos.addAndGet(walkBusy);
                     }
                 } else {
-                    notifyBuilder.mActions.clear();
-                    showErrorNotification("Could not parse line " + lineCounter + " of 'backup'");
+                    walkError = "Could not parse line " + lineCounter + " of 'backup'";
                     break;
                 }
             }
-
-            // If we got to the end of 'backup' without problems
-            if (line == null) {
-                if (isCanceled) {
-                    showCancelNotification("Backup job canceled");
-                } else {
-                    showSuccessNotification("Backup completed");
-                }
-            }
+            walkFinished = (line == null) && !pipeline.shouldStop();
         } catch (Exception e) {
             Log.i(TAG, e.getMessage());
-            showErrorNotification("Error: " + e.getMessage());
+            walkError = "Error: " + e.getMessage();
+        }
+
+        if (walkError != null) {
+            pipeline.cancel();
+        }
+        // A stopped job may not have long left, so save progress before waiting out the
+        // uploads still going
+        if (isStopped) {
+            onCheckpoint(pipeline.getCheckpoint());
+        }
+
+        // Wait for the hash and upload stages, so the outcome reflects every worker
+        try {
+            pipeline.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (BackupPipeline.StageStats stageStats : pipeline.getStats()) {
+            Log.i(TAG, stageStats.toString());
+        }
+        Log.i(TAG, "Upload concurrency ended at " + DriveUtils.getUploadConcurrency().getLimit());
+
+        // Upload the last, partly filled bundle
+        Exception error = pipeline.getError();
+        if (bundleWriter != null) {
+            try {
+                bundleWriter.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not upload the last bundle", e);
+                error = (error != null) ? error : e;
+            }
+        }
+
+        // Record which content each path has, for the files in the object store
+        if (objectStore != null) {
+            uploadManifest();
+        }
+
+        if (walkError == null && error == null && !isCanceled && !isStopped) {
+            Checkpoint.clear(checkpointFile); // Finished, the next run starts from the top
+        } else {
+            onCheckpoint(pipeline.getCheckpoint());
+        }
+
+        unregisterNetworkCallback();
+        // Lookups no upload waited for, of folders with nothing to upload, may still be in
+        // flight. They end on their own, as their deadlines still run after the shutdown
+        DriveUtils.shutdownAsync();
+
+        try {
+            hashIndex.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the hash index", e);
+        }
+        if (folderCache != null) {
+            try {
+                folderCache.save();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save the folder cache", e);
+            }
+        }
+
+        String outcome;
+        if (walkError != null || error != null) {
+            outcome = "error";
+        } else if (isStopped) {
+            outcome = "paused";
+        } else if (isCanceled) {
+            outcome = "canceled";
+        } else {
+            outcome = "completed";
+        }
+        stats.phase(RunStats.PHASE_RUN, runStart);
+        try {
+            stats.writeReport(getConfigFile(this, "report.json"), outcome, pipeline.getStats());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write the run report", e);
+        }
+        RunHistory history = new RunHistory(this);
+        try {
+            history.record(stats, outcome);
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not record the run in the history", e);
+        } finally {
+            history.close();
+        }
+
+        if (walkError != null) {
+            showErrorNotification(walkError);
+        } else if (error != null) {
+            showErrorNotification("Error: " + error.getMessage());
+        } else if (isStopped) {
+            showCancelNotification("Backup paused, it will resume later");
+        } else if (isCanceled) {
+            showCancelNotification("Backup job canceled");
+        } else {
+            showSuccessNotification("Backup completed");
         }
 
-        // TODO: Possibly reschedule job
         endService();
     }
 
@@ -201,6 +519,7 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
 
         File backupFile = getConfigFile(this, "backup");
         File helpFile = getConfigFile(this, "help");
+        File settingsFile = getConfigFile(this, "settings");
 
         boolean res = true;
         try {
@@ -222,6 +541,11 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
                 helpWriter.close();
             }
 
+            // Setup settings template
+            if (!settingsFile.isFile() && res) {
+                Settings.writeTemplate(settingsFile);
+            }
+
         } catch (IOException | JSAPException e) {
             e.printStackTrace();
         }
@@ -229,26 +553,369 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
         return res;
     }
 
-    private void processFile(File file, DriveFolder parent) throws NoSuchAlgorithmException, IOException {
-        if (file.isDirectory()) {
-            DriveFolder driveFolder = DriveUtils.getFolder(file, parent);
-            for (File child : file.listFiles()) {
-                processFile(child, driveFolder);
-                if (isCanceled) break;
+    /*--------------- Uploads ---------------*/
+
+    // Sets up the per-file work for the run's pipeline, on Drive. The engine uploads files on
+    // plain lines itself, and hands those on lines with upload options back to the service
+    private BackupEngine<FolderListing> newEngine(DriveBackend backend) {
+        return new BackupEngine<FolderListing>(backend, hashIndex,
+                Environment.getExternalStorageDirectory()) {
+            @Override
+            protected long uploadChanged(File file, FolderListing parent, BackupOptions options)
+                    throws NoSuchAlgorithmException, IOException {
+                if (options.delta || options.dedup || options.bundle || options.compress) {
+                    return BackupService.this.uploadChanged(file, parent, options);
+                }
+                return super.uploadChanged(file, parent, options);
+            }
+
+            @Override
+            protected LocalFiles.OnProgressListener newProgressListener(File file) {
+                return BackupService.this.newProgressListener(file);
             }
-        } else if (file.isFile()) {
-            if (!isCanceled && hasFileChanged(this, file)) {
-                DriveUtils.uploadFile(file, parent);
+        };
+    }
+
+    // Uploads a file the engine found changed, the way its line's options ask for, and
+    // returns the file's length, or -1 if it was only bundled (see uploadSegment)
+    private long uploadChanged(File file, FolderListing parent, BackupOptions options)
+            throws NoSuchAlgorithmException, IOException {
+        // Stat before reading, so a write during the upload is caught by the next run
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        if (options.dedup) {
+            uploadDeduplicated(file, length, lastModified);
+            return length;
+        }
+        if (options.bundle && length <= bundleMaxFileSize) {
+            // Recorded in the index and counted once its bundle is up, see uploadSegment
+            getBundleWriter().add(file, getRelativePath(file), options.lineNumber, length,
+                    lastModified);
+            return -1;
+        }
+
+        // A file named directly in 'backup' goes into the app's root folder
+        FolderListing folder = (parent != null) ? parent : DriveUtils.listRoot();
+        if (folder == null) {
+            throw new IOException("Could not list the app's folder on Google Drive");
+        }
+
+        // The file is hashed as it uploads, and the hash kept only if the upload went through
+        boolean delta = options.delta && length >= deltaMinSize;
+        byte[] digest = delta ? uploadDelta(file, folder) : null;
+        if (digest == null) {
+            digest = uploadWhole(file, folder, delta, options.compress);
+        }
+        recordUpload(hashIndex, file, length, lastModified, digest);
+        RunStats.current().count(RunStats.FILES_UPLOADED, 1);
+        return length;
+    }
+
+    // Uploads file in full and returns its digest. With delta set it also starts a new delta
+    // chain: the old one is trashed and the new version's signature kept for the next change.
+    // With compress set the file is gzipped on the way, if that is worth it
+    private byte[] uploadWhole(File file, FolderListing parent, boolean delta, boolean compress)
+            throws NoSuchAlgorithmException, IOException {
+        File signatureFile = delta ? getSignatureFile(this, file) : null;
+        DeltaSync.SignatureBuilder signature = null;
+        if (signatureFile != null) {
+            // Drop the signature first, so a failure below can only cost the next run a
+            // full upload, never a delta against the wrong version
+            //noinspection ResultOfMethodCallIgnored
+            signatureFile.delete();
+            if (DriveUtils.trashDeltas(parent, file.getName())) {
+                signature = new DeltaSync.SignatureBuilder(
+                        DeltaSync.chooseBlockSize(file.length()));
             }
+        }
+
+        MessageDigest digest = newDigest();
+        boolean uploaded = compress
+                ? DriveUtils.uploadFileCompressed(file, parent, newProgressListener(file), digest,
+                        signature, compressMinSaving)
+                : DriveUtils.uploadFile(file, file.getName(), parent, newProgressListener(file),
+                        digest, signature);
+        if (!uploaded) {
+            throw new IOException("Could not upload " + file.getName());
+        }
+        if (signature != null) {
+            saveSignature(signatureFile, signature.finish(0));
+        }
+        return digest.digest();
+    }
+
+    // Uploads what changed in file since its last upload as the next delta of its chain, and
+    // returns its digest. Returns null when the file should be uploaded whole instead
+    @Nullable
+    private byte[] uploadDelta(File file, FolderListing parent)
+            throws NoSuchAlgorithmException, IOException {
+        File signatureFile = getSignatureFile(this, file);
+        if (signatureFile == null || !signatureFile.isFile()) {
+            return null;
+        }
+        DeltaSync.Signature base;
+        try {
+            base = DeltaSync.Signature.load(signatureFile);
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage());
+            return null;
+        }
+        // The chain needs the full upload it starts from, which may be stored compressed
+        if (base.chain >= deltaMaxChain || (!isLive(parent.get(file.getName()))
+                && !isLive(parent.get(file.getName() + Compression.SUFFIX)))) {
+            return null;
+        }
+
+        MessageDigest digest = newDigest();
+        DeltaSync.SignatureBuilder next =
+                new DeltaSync.SignatureBuilder(DeltaSync.chooseBlockSize(file.length()));
+        File deltaFile = createTempFile(this, "delta");
+        try {
+            boolean worthIt;
+            try (
+                    InputStream in = new FileInputStream(file);
+                    OutputStream out = new FileOutputStream(deltaFile)
+            ) {
+                // Past half the file in new bytes, a full upload costs about the same and
+                // keeps the chain short
+                worthIt = DeltaSync.writeDelta(in, base, out, next, digest, file.length() / 2);
+            }
+            if (!worthIt) {
+                return null;
+            }
+
+            String deltaName = DeltaSync.deltaName(file.getName(), base.chain + 1);
+            if (!DriveUtils.uploadFile(deltaFile, deltaName, parent, newProgressListener(file),
+                    null, null)) {
+                throw new IOException("Could not upload " + deltaName);
+            }
+            saveSignature(signatureFile, next.finish(base.chain + 1));
+            return digest.digest();
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            deltaFile.delete();
+        }
+    }
+
+    // Stores file's contents in the object store, where they are uploaded only if no other
+    // path, in this run or an earlier one, had them first
+    private void uploadDeduplicated(File file, long length, long lastModified)
+            throws NoSuchAlgorithmException, IOException {
+        byte[] digest = getFileDigest(file);
+        if (!getObjectStore().store(file, toHex(digest), newProgressListener(file))) {
+            Log.i(TAG, file.getName() + " is already stored, recording a reference to it");
+        }
+        recordUpload(hashIndex, file, length, lastModified, digest);
+        RunStats.current().count(RunStats.FILES_UPLOADED, 1);
+    }
+
+    private ObjectStore getObjectStore() throws IOException {
+        synchronized (objectStoreLock) {
+            if (objectStore == null) {
+                objectStore = DriveUtils.openObjectStore();
+                if (objectStore == null) {
+                    throw new IOException("Could not open the object store on Google Drive");
+                }
+            }
+            return objectStore;
+        }
+    }
+
+    private void uploadManifest() {
+        File manifestFile = getManifestFile(this);
+        try {
+            writeManifest(hashIndex, objectStore, manifestFile);
+            if (!DriveUtils.uploadFile(manifestFile, ObjectStore.MANIFEST_NAME, null, null, null,
+                    null)) {
+                Log.e(TAG, "Could not upload the manifest");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not upload the manifest", e);
+        }
+    }
+
+    private static boolean isLive(@Nullable Metadata metadata) {
+        return metadata != null && !metadata.isTrashed();
+    }
+
+    private void saveSignature(File signatureFile, DeltaSync.Signature signature) {
+        try {
+            signature.save(signatureFile);
+        } catch (IOException e) {
+            // Without it the next change is uploaded whole, which is always safe
+            Log.w(TAG, "Could not save the signature of an upload", e);
+            //noinspection ResultOfMethodCallIgnored
+            signatureFile.delete();
+        }
+    }
+
+    @Override
+    public void uploadSegment(File segmentFile, String name, List<BundleWriter.Member> members)
+            throws IOException {
+        boolean uploaded = false;
+        try {
+            uploaded = DriveUtils.uploadFile(segmentFile, name, bundleFolder, null, null, null);
+        } finally {
+            bundleFailed |= !uploaded;
+        }
+        if (!uploaded) {
+            throw new IOException("Could not upload " + name);
+        }
+        // The engine left the members' counts to now, when they are actually backed up
+        RunStats stats = RunStats.current();
+        for (BundleWriter.Member member : members) {
+            recordUpload(hashIndex, member.file, member.length, member.lastModified,
+                    member.digest);
+            RunStats.RootStats root = stats.root(member.line);
+            root.filesUploaded.incrementAndGet();
+            root.bytesUploaded.addAndGet(member.length);
+        }
+        stats.count(RunStats.FILES_UPLOADED, members.size());
+    }
+
+    private BundleWriter getBundleWriter() throws IOException {
+        synchronized (bundleLock) {
+            if (bundleWriter == null) {
+                bundleFolder = DriveUtils.getAppFolder(BundleWriter.FOLDER_NAME);
+                if (bundleFolder == null) {
+                    throw new IOException(
+                            "Could not find or create the bundle folder on Google Drive");
+                }
+                bundleWriter = openBundleWriter(this, bundleTargetSize, this);
+            }
+            return bundleWriter;
+        }
+    }
+
+    // Called from pipeline threads and the run thread. Flushing the bundle uploads it, which
+    // waits for an upload slot, so no lock of the service's is held here. The writer and the
+    // index each lock themselves
+    @Override
+    public void onCheckpoint(Checkpoint checkpoint) {
+        try {
+            // The index must hold everything the checkpoint claims is done, including the
+            // files still waiting in a bundle
+            BundleWriter bundles = bundleWriter;
+            if (bundles != null) {
+                bundles.flush();
+            }
+            hashIndex.flush();
+            if (bundleFailed) {
+                Checkpoint.clear(checkpointFile); // The next run walks everything again
+                return;
+            }
+            checkpoint.withStalls(stalls).save(checkpointFile, checkpointStamp);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the checkpoint", e);
+        }
+
+        // Checkpoints come regularly, so they're where edits to the rate settings are noticed
+        applyRateLimit();
+    }
+
+    /*--------------- Upload Rate ---------------*/
+
+    // Sets the upload rate for the current network from 'settings', re-reading it if it was
+    // edited since it was last read
+    private void applyRateLimit() {
+        long rate;
+        long burst;
+        synchronized (rateLock) {
+            File settingsFile = getConfigFile(this, "settings");
+            if (settingsFile.lastModified() != rateSettingsModified) {
+                try {
+                    rateSettings = Settings.load(settingsFile);
+                    rateSettingsModified = settingsFile.lastModified();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not re-read 'settings', keeping the current upload rate");
+                }
+            }
+            rate = rateSettings.getLong(Settings.UPLOAD_RATE, Settings.DEFAULT_UPLOAD_RATE);
+            ConnectivityManager connectivity =
+                    (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+            if (connectivity.isActiveNetworkMetered()) {
+                rate = rateSettings.getLong(Settings.UPLOAD_RATE_METERED, rate);
+            }
+            burst = rateSettings.getLong(Settings.UPLOAD_BURST, Settings.DEFAULT_UPLOAD_BURST);
+        }
+
+        if (rate != DriveUtils.getRateLimiter().getRate()) {
+            Log.i(TAG, "Upload rate: " + ((rate > 0) ? rate + "B/s" : "unlimited"));
+        }
+        DriveUtils.getRateLimiter().setRate(rate, burst);
+    }
+
+    private void registerNetworkCallback() {
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                applyRateLimit();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                applyRateLimit();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                applyRateLimit();
+            }
+        };
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        ConnectivityManager connectivity =
+                (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        connectivity.registerNetworkCallback(request, networkCallback);
+    }
+
+    private void unregisterNetworkCallback() {
+        if (networkCallback != null) {
+            ConnectivityManager connectivity =
+                    (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+            connectivity.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+    }
+
+    private LocalFiles.OnProgressListener newProgressListener(File file) {
+        final String name = file.getName();
+        return new LocalFiles.OnProgressListener() {
+            private int lastPercent = -1;
+
+            @Override
+            public void onProgress(long bytesTransferred, long totalBytes) {
+                // Only touch the notification when the percentage actually moves
+                int percent = (totalBytes > 0) ? (int) (bytesTransferred * 100 / totalBytes) : 100;
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    showUploadNotification("Uploading " + name, percent);
+                }
+            }
+        };
+    }
+
+    private void scheduleResume(long delayMillis) {
+        JobInfo resumeJob = new JobInfo.Builder(JOB_ID_RESUME,
+                new ComponentName(this, BackupService.class))
+                .setMinimumLatency(delayMillis)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .build();
+        JobScheduler jobScheduler = (JobScheduler) getSystemService(JOB_SCHEDULER_SERVICE);
+        if (jobScheduler.schedule(resumeJob) <= 0) {
+            Log.e(TAG, "Could not schedule the resume job");
         } else {
-            throw new FileNotFoundException(file.getName() + " does not exists");
+            Log.i(TAG, "Resuming in " + delayMillis / 1000 + "s");
         }
     }
 
     private void endService() {
         if (manualStart) {
             stopSelf();
-        } else {
+        } else if (!isStopped) {
+            // Once stopped, the job is no longer ours to finish
             jobFinished(jobParams, false);
         }
     }
@@ -261,6 +928,18 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
                 true, false, cancel);
     }
 
+    private void showUploadNotification(String msg, int percent) {
+        synchronized (notifyLock) {
+            showNotification(msg, R.drawable.ic_cloud_upload_white_24dp, COLOR_PRIMARY, false,
+                    true, false, cancel);
+            // Replace the indeterminate bar with the upload's actual progress
+            notifyBuilder.setProgress(100, percent, false);
+            NotificationManager manager =
+                    (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            manager.notify(0, notifyBuilder.build());
+        }
+    }
+
     private void showErrorNotification(String msg) {
         showNotification(msg, R.drawable.ic_error_white_24dp, COLOR_ERROR, false, false,
                 true, null);
@@ -276,24 +955,27 @@ public class BackupService extends JobService implements DriveUtils.OnConnectLis
                 true, null);
     }
 
+    // Locked since the walker and every upload worker post notifications
     private void showNotification(String msg, int icon, int color, boolean showProgress,
                                   boolean ongoing, boolean autoCancel,
                                   @Nullable NotificationCompat.Action action) {
-        notifyBuilder
-                .setContentText(msg)
-                .setSmallIcon(icon)
-                .setColor(color)
-                .setProgress(0, 0, showProgress)
-                .setOngoing(ongoing)
-                .setAutoCancel(autoCancel);
-        if (action == null) {
+        synchronized (notifyLock) {
+            notifyBuilder
+                    .setContentText(msg)
+                    .setSmallIcon(icon)
+                    .setColor(color)
+                    .setProgress(0, 0, showProgress)
+                    .setOngoing(ongoing)
+                    .setAutoCancel(autoCancel);
+            // Clear first, so repeated progress updates don't stack up duplicate actions
             notifyBuilder.mActions.clear();
-        } else {
-            notifyBuilder.addAction(action);
-        }
-
+            if (action != null) {
+                notifyBuilder.addAction(action);
+            }
 
-        NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        manager.notify(0, notifyBuilder.build());
+            NotificationManager manager =
+                    (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            manager.notify(0, notifyBuilder.build());
+        }
     }
 }
\ No newline at end of file
@@ -7,19 +7,27 @@ import android.content.Intent;
 import android.content.IntentSender;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.FrameLayout;
+import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.Toolbar;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.shalomscott.backup.Utils.DriveUtils;
+import com.shalomscott.backup.Utils.RunHistory;
+
+import java.util.List;
+import java.util.Locale;
 
 
 public class LaunchActivity extends Activity implements DriveUtils.OnConnectListener {
@@ -27,6 +35,11 @@ public class LaunchActivity extends Activity implements DriveUtils.OnConnectList
     private static final int REQUEST_READ_EXTERNAL_STORAGE = 0;
     private static final int REQUEST_DRIVE_ACCOUNT = 1;
 
+    private static final int HISTORY_RUNS = 10;
+    private static final int HISTORY_ROOTS = 5;
+    // A line of 'backup' this many times slower than its earlier runs is flagged
+    private static final double HISTORY_SLOWDOWN = 2.0;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
 
@@ -121,10 +134,78 @@ public class LaunchActivity extends Activity implements DriveUtils.OnConnectList
                     .setView(R.layout.dialog_about)
                     .show();
             return true;
+        } else if (id == R.id.action_history) {
+            showHistory();
+            return true;
         }
         return false;
     }
 
+    // Shows the recent runs' throughput and the slowest lines of 'backup', read from the run
+    // history. Timings are kept per line, covering everything under the line's path
+    private void showHistory() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_history, null);
+        final TextView text = (TextView) view.findViewById(R.id.history_text);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_history)
+                .setView(view)
+                .show();
+
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                RunHistory history = new RunHistory(LaunchActivity.this);
+                try {
+                    return formatHistory(history.getRecentRuns(HISTORY_RUNS),
+                            history.getSlowestRoots(HISTORY_ROOTS));
+                } finally {
+                    history.close();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String history) {
+                text.setText(history);
+            }
+        }.execute();
+    }
+
+    private String formatHistory(List<RunHistory.Run> runs, List<RunHistory.RootTrend> roots) {
+        if (runs.isEmpty()) {
+            return getString(R.string.history_empty);
+        }
+
+        StringBuilder text = new StringBuilder(getString(R.string.history_recent_runs))
+                .append('\n');
+        for (RunHistory.Run run : runs) {
+            text.append(DateUtils.formatDateTime(this, run.startedAt,
+                    DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME
+                            | DateUtils.FORMAT_NUMERIC_DATE))
+                    .append("  ").append(run.outcome).append('\n')
+                    .append(String.format(Locale.US, "  %s, %d/%d files up, %d failed\n",
+                            DateUtils.formatElapsedTime(run.durationMs / 1000),
+                            run.filesUploaded, run.filesScanned, run.filesFailed))
+                    .append("  ").append(Formatter.formatShortFileSize(this, run.bytesSent))
+                    .append(" at ").append(Formatter.formatShortFileSize(this,
+                    run.getThroughput())).append("/s\n");
+        }
+
+        text.append('\n').append(getString(R.string.history_slowest_roots)).append('\n');
+        for (RunHistory.RootTrend root : roots) {
+            double slowdown = root.getSlowdown();
+            text.append((slowdown >= HISTORY_SLOWDOWN) ? "! " : "  ").append(root.path)
+                    .append('\n')
+                    .append(String.format(Locale.US, "  %s for %d files",
+                            DateUtils.formatElapsedTime(root.latestMs / 1000),
+                            root.latestFiles));
+            if (slowdown > 0) {
+                text.append(String.format(Locale.US, ", %.1fx the usual", slowdown));
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
     public void runBackup(View view) {
         Intent intent = new Intent(this, BackupService.class);
         startService(intent);
@@ -0,0 +1,42 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * The app's Google Drive folder as a {@link StorageBackend}, on top of {@link DriveUtils}. The
+ * client must be connected (see {@link DriveUtils#connect}). Folders are also looked up
+ * without blocking, through {@link DriveUtils#getFolderAsync}.
+ */
+public class DriveBackend implements AsyncStorageBackend<FolderListing> {
+
+    @Override
+    public FolderListing getRoot() throws IOException {
+        FolderListing root = DriveUtils.listRoot();
+        if (root == null) {
+            throw new IOException("Could not list the app's folder on Google Drive");
+        }
+        return root;
+    }
+
+    @Override
+    public FolderListing getFolder(File directory, FolderListing parent) throws IOException {
+        return DriveUtils.getFolder(directory, parent);
+    }
+
+    @Override
+    public void getFolderAsync(File directory, FolderListing parent,
+                               AsyncCalls.Callback<FolderListing> callback) {
+        DriveUtils.getFolderAsync(directory, parent, callback);
+    }
+
+    @Override
+    public void upload(File file, String name, FolderListing folder,
+                       LocalFiles.OnProgressListener listener, MessageDigest digest)
+            throws IOException {
+        if (!DriveUtils.uploadFile(file, name, folder, listener, digest, null)) {
+            throw new IOException("Could not upload " + name);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.shalomscott.backup.Utils;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.drive.Drive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The app's one connection to Google Drive, shared by the activity, the service and every
+ * upload thread.
+ * <p>
+ * Connecting while a connection is already being made only adds a listener, so however many
+ * callers ask at once the client connects once. A suspended connection is reconnected right
+ * away, and worker threads that need the client meanwhile wait for it rather than fail.
+ * Listeners are called on the main thread, which is also where the client reports back, so
+ * nothing on the main thread may wait for the connection.
+ */
+public class DriveConnection implements GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener {
+    private static final String TAG = "DriveConnection";
+
+    // How long a worker thread waits for a suspended connection to come back
+    private static final long RECONNECT_WAIT_MILLIS = 30 * 1000;
+
+    private static DriveConnection instance;
+
+    private final GoogleApiClient client;
+
+    // All below are guarded by this
+    private final List<DriveUtils.OnConnectListener> listeners = new ArrayList<>();
+    // Set from the first connect until the client connects or fails
+    private boolean connecting = false;
+    // The outcome of the last attempt, or null before the first one ends
+    private DriveUtils.ConnectResult result;
+
+    private DriveConnection(Context context) {
+        client = new GoogleApiClient.Builder(context)
+                .addApi(Drive.API)
+                .addScope(Drive.SCOPE_FILE)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .build();
+    }
+
+    public static synchronized DriveConnection get(Context context) {
+        if (instance == null) {
+            // The application's context, since the connection outlives whoever made it
+            instance = new DriveConnection(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Calls listener once the client is connected, or has failed to connect, starting to
+     * connect if no one else has. If already connected, listener is called right away.
+     * listener may be null, just to start connecting ahead of need.
+     */
+    public void connect(@Nullable DriveUtils.OnConnectListener listener) {
+        DriveUtils.ConnectResult connected;
+        synchronized (this) {
+            if (connecting || !client.isConnected()) {
+                if (listener != null) {
+                    listeners.add(listener);
+                }
+                startConnecting();
+                return;
+            }
+            connected = result;
+        }
+        if (listener != null) {
+            listener.onConnect(connected);
+        }
+    }
+
+    /**
+     * Blocks until the client is connected, or has failed to connect, starting to connect if
+     * no one else has. Returns null if neither happened within timeoutMillis. Must not be
+     * called on the main thread.
+     */
+    @Nullable
+    public synchronized DriveUtils.ConnectResult await(long timeoutMillis)
+            throws InterruptedException {
+        if (!connecting && client.isConnected()) {
+            return result;
+        }
+        startConnecting();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left = timeoutMillis;
+        while (connecting && left > 0) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return connecting ? null : result;
+    }
+
+    /**
+     * Returns the client. While it is reconnecting, a worker thread first waits a while for
+     * it to be back; the main thread never waits.
+     */
+    public GoogleApiClient getClient() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            synchronized (this) {
+                if (connecting) {
+                    try {
+                        await(RECONNECT_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        // The call that follows fails, and the caller sees it as a failed call
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+        return client;
+    }
+
+    public synchronized boolean isConnected() {
+        return !connecting && client.isConnected();
+    }
+
+    public synchronized void disconnect() {
+        client.disconnect();
+        connecting = false;
+        result = null;
+        notifyAll();
+    }
+
+    @Override
+    public void onConnected(@Nullable Bundle bundle) {
+        DriveUtils.ConnectResult connected = new DriveUtils.ConnectResult();
+        connected.success = true;
+        connected.successBundle = bundle;
+        connected.failedResult = null;
+        finish(connected);
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        Log.w(TAG, "Connection suspended (" + cause + "), reconnecting");
+        synchronized (this) {
+            result = null;
+            connecting = false;
+            startConnecting();
+        }
+    }
+
+    @Override
+    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+        Log.e(TAG, "Could not connect: " + connectionResult);
+        DriveUtils.ConnectResult failed = new DriveUtils.ConnectResult();
+        failed.success = false;
+        failed.successBundle = null;
+        failed.failedResult = connectionResult;
+        finish(failed);
+    }
+
+    // Only called holding the lock
+    private void startConnecting() {
+        if (!connecting) {
+            connecting = true;
+            client.connect();
+        }
+    }
+
+    // Records the outcome of an attempt and tells everyone waiting for it
+    private void finish(DriveUtils.ConnectResult outcome) {
+        List<DriveUtils.OnConnectListener> waiting;
+        synchronized (this) {
+            result = outcome;
+            connecting = false;
+            waiting = new ArrayList<>(listeners);
+            listeners.clear();
+            notifyAll();
+        }
+        for (DriveUtils.OnConnectListener listener : waiting) {
+            listener.onConnect(outcome);
+        }
+    }
+}
@@ -7,12 +7,19 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.Result;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.drive.Drive;
 import com.google.android.gms.drive.DriveApi;
 import com.google.android.gms.drive.DriveContents;
 import com.google.android.gms.drive.DriveFile;
 import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.DriveResource;
 import com.google.android.gms.drive.Metadata;
 import com.google.android.gms.drive.MetadataBuffer;
 import com.google.android.gms.drive.MetadataChangeSet;
@@ -23,8 +30,15 @@ import com.google.android.gms.drive.query.Query;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 // TODO: add javadoc
 
@@ -34,19 +48,31 @@ import java.util.ArrayList;
  */
 public class DriveUtils {
     private static final String TAG = "DriveUtils";
-    private static GoogleApiClient googleApiClient;
+    // Set by the first connect, and shared with whoever else connects
+    private static volatile DriveConnection connection;
 
     private static final String ROOT_NAME = "Android Backup";
-    private static DriveFolder root;
+    // Resolved once per process. rootLock keeps two blocking calls from both creating it,
+    // and is held through their requests, so asynchronous calls never take it
+    private static volatile DriveFolder root;
+    private static final Object rootLock = new Object();
+    // Asynchronous calls waiting for the root while one of them resolves it. Also their lock
+    private static final List<AsyncCalls.Callback<DriveFolder>> rootWaiters = new ArrayList<>();
+
+    // Remembers which Drive folder each local directory maps to, across runs
+    private static volatile FolderCache folderCache;
+
+    // Caps the bandwidth of every upload together. Unlimited until given a rate
+    private static final RateLimiter rateLimiter = new RateLimiter();
+    // Decides how many uploads may be in flight, from how the last ones fared
+    private static final AdaptiveConcurrency uploadConcurrency =
+            new AdaptiveConcurrency(2, 1, Settings.DEFAULT_UPLOAD_THREADS);
 
     private static final CustomPropertyKey appProp =
             new CustomPropertyKey("ANDROID_BACKUP", CustomPropertyKey.PRIVATE);
 
     /*--------------- Google API Client ---------------*/
 
-    private static ConnectResult connectResult;
-    private static ArrayList<OnConnectListener> listeners = new ArrayList<>();
-
     public static class ConnectResult {
         public boolean success;
         public Bundle successBundle;
@@ -57,94 +83,212 @@ public class DriveUtils {
         void onConnect(ConnectResult result);
     }
 
-    public static void connect(Context context, OnConnectListener listener) {
-        if (googleApiClient == null) {
-            listeners.add(listener);
-            googleApiClient = new GoogleApiClient.Builder(context)
-                    .addApi(Drive.API)
-                    .addScope(Drive.SCOPE_FILE)
-                    .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
-                        @Override
-                        public void onConnected(@Nullable Bundle bundle) {
-                            connectResult = new ConnectResult();
-                            connectResult.success = true;
-                            connectResult.successBundle = bundle;
-                            connectResult.failedResult = null;
-                            for (OnConnectListener l : listeners) {
-                                l.onConnect(connectResult);
-                            }
-                            listeners.clear();
-                        }
+    /**
+     * Connects the shared client, calling listener on the main thread once it is connected or
+     * has failed to (see {@link DriveConnection}). listener may be null, to have the connection
+     * ready before it is needed.
+     */
+    public static void connect(Context context, @Nullable OnConnectListener listener) {
+        connection = DriveConnection.get(context);
+        connection.connect(listener);
+    }
 
-                        @Override
-                        public void onConnectionSuspended(int i) {
-                            // TODO: something here?
-                        }
-                    })
-                    .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
-                        @Override
-                        public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-                            connectResult = new ConnectResult();
-                            connectResult.success = false;
-                            connectResult.successBundle = null;
-                            connectResult.failedResult = connectionResult;
-                            for (OnConnectListener l : listeners) {
-                                l.onConnect(connectResult);
-                            }
-                            listeners.clear();
-                        }
-                    })
-                    .build();
-            googleApiClient.connect();
-        } else if (googleApiClient.isConnecting()) {
-            listeners.add(listener);
-        } else if (googleApiClient.isConnected()) {
-            listener.onConnect(connectResult);
-        } else {
-            listeners.add(listener);
-            googleApiClient.reconnect();
-        }
+    /**
+     * Connects the shared client, blocking until it is connected or has failed to. Returns
+     * null if neither happened within timeoutMillis. Must not be called on the main thread.
+     */
+    @Nullable
+    public static ConnectResult awaitConnection(Context context, long timeoutMillis)
+            throws InterruptedException {
+        connection = DriveConnection.get(context);
+        return connection.await(timeoutMillis);
     }
 
     public static void disconnect() {
-        if (googleApiClient != null)
-            googleApiClient.disconnect();
+        if (connection != null)
+            connection.disconnect();
     }
 
     public static void sync() {
-        if (googleApiClient != null)
-            Drive.DriveApi.requestSync(googleApiClient);
+        if (connection != null)
+            Drive.DriveApi.requestSync(connection.getClient());
+    }
+
+    // The shared client, waiting for it first if it is reconnecting
+    private static GoogleApiClient client() {
+        DriveConnection current = connection;
+        if (current == null) {
+            throw new IllegalStateException("Google Drive was never connected");
+        }
+        return current.getClient();
+    }
+
+    public static void setFolderCache(@Nullable FolderCache cache) {
+        folderCache = cache;
+    }
+
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public static AdaptiveConcurrency getUploadConcurrency() {
+        return uploadConcurrency;
     }
 
     /* Note: All of the functions that follow BLOCK THREAD EXECUTION */
     /*--------------- DriveFolders ---------------*/
 
+    /**
+     * Finds (or creates) the Drive folder for a local directory and lists its children.
+     * When the parent's listing is given the folder is resolved against it, otherwise it is
+     * looked up under the app's root folder.
+     */
     @Nullable
-    public static DriveFolder getFolder(File folder, @Nullable DriveFolder parent) throws FileNotFoundException {
+    public static FolderListing getFolder(File folder, @Nullable FolderListing parent)
+            throws FileNotFoundException {
         if (!folder.isDirectory()) {
             String eMsg = folder.getName() + " is not an existing directory";
             Log.e(TAG, eMsg);
             throw new FileNotFoundException(eMsg);
         }
 
-        DriveFolder driveParent = (parent != null) ? parent : getRoot();
+        DriveFolder resFolder;
+        if (parent != null) {
+            // The parent's listing already tells whether the folder exists
+            Metadata metadata = parent.get(folder.getName());
+            if (metadata != null && metadata.isFolder() && !metadata.isTrashed()) {
+                resFolder = metadata.getDriveId().asDriveFolder();
+            } else {
+                resFolder = createFolder(folder.getName(), parent.folder, metadata);
+            }
+        } else {
+            // Top level folders would need a query, so they go through the folder cache
+            String key = FileUtils.getRelativePath(folder);
+            resFolder = getCachedFolder(key);
+            if (resFolder == null) {
+                resFolder = getFolder(folder.getName(), getRoot());
+                cacheFolder(key, resFolder);
+            }
+            if (resFolder != null) {
+                FolderListing listing = listFolder(resFolder);
+                if (listing == null && folderCache != null) {
+                    folderCache.invalidate(key);
+                }
+                return listing;
+            }
+        }
 
-        return getFolder(folder.getName(), driveParent);
+        return (resFolder != null) ? listFolder(resFolder) : null;
+    }
+
+    /**
+     * Lists every child of folder the app has tagged, with a single request.
+     */
+    @Nullable
+    public static FolderListing listFolder(DriveFolder folder) {
+        DriveApi.MetadataBufferResult listResult =
+                await("listChildren", folder.listChildren(client()));
+
+        if (!listResult.getStatus().isSuccess()) {
+            Log.e(TAG, "Could not list the children of a Drive folder");
+            return null;
+        }
+
+        return newListing(folder, listResult.getMetadataBuffer());
+    }
+
+    // Keeps the children of folder the app has tagged, releasing the buffer
+    private static FolderListing newListing(DriveFolder folder, MetadataBuffer buffer) {
+        FolderListing listing = new FolderListing(folder);
+        try {
+            for (Metadata metadata : buffer) {
+                String name = metadata.getCustomProperties().get(appProp);
+                if (name != null) {
+                    // Freeze, since the buffer's entries die with it
+                    listing.put(name, metadata.freeze());
+                }
+            }
+        } finally {
+            buffer.release();
+        }
+        return listing;
+    }
+
+    /**
+     * Lists the app's root folder, where files named directly in 'backup' go.
+     */
+    @Nullable
+    public static FolderListing listRoot() {
+        DriveFolder driveRoot = getRoot();
+        return (driveRoot != null) ? listFolder(driveRoot) : null;
     }
 
     @Nullable
     private static DriveFolder getRoot() {
-        if (root == null) {
-            root = getFolder(ROOT_NAME, null);
+        DriveFolder resolved = root;
+        if (resolved != null) {
+            return resolved;
+        }
+        synchronized (rootLock) {
+            if (root == null) {
+                root = getCachedFolder(FolderCache.ROOT_KEY);
+            }
+            if (root == null) {
+                root = getFolder(ROOT_NAME, null);
+                cacheFolder(FolderCache.ROOT_KEY, root);
+            }
+            return root;
+        }
+    }
+
+    // Returns the cached folder for key if Drive still has it, dropping the entry otherwise
+    @Nullable
+    private static DriveFolder getCachedFolder(String key) {
+        DriveFolder cached = decodeCachedFolder(key);
+        if (cached == null) {
+            return null;
+        }
+
+        DriveResource.MetadataResult metadataResult =
+                await("getMetadata", cached.getMetadata(client()));
+        if (!metadataResult.getStatus().isSuccess()
+                || metadataResult.getMetadata().isTrashed()) {
+            folderCache.invalidate(key);
+            return null;
+        }
+        return cached;
+    }
+
+    // Returns the folder cached for key without asking Drive about it, or null
+    @Nullable
+    private static DriveFolder decodeCachedFolder(String key) {
+        if (folderCache == null) {
+            return null;
+        }
+        String encodedId = folderCache.get(key);
+        if (encodedId == null) {
+            return null;
+        }
+
+        try {
+            return DriveId.decodeFromString(encodedId).asDriveFolder();
+        } catch (IllegalArgumentException e) {
+            folderCache.invalidate(key);
+            return null;
+        }
+    }
+
+    private static void cacheFolder(String key, @Nullable DriveFolder folder) {
+        if (folderCache != null && folder != null) {
+            folderCache.put(key, folder.getDriveId().encodeToString());
         }
-        return root;
     }
 
     @Nullable
     private static DriveFolder getFolder(String foldername, @Nullable DriveFolder parent) {
         DriveFolder driveParent = parent;
         if (driveParent == null) {
-            driveParent = Drive.DriveApi.getRootFolder(googleApiClient);
+            driveParent = Drive.DriveApi.getRootFolder(client());
         }
 
         // Search Drive to see if folder already exists
@@ -152,7 +296,8 @@ public class DriveUtils {
                 .addFilter(Filters.eq(appProp, foldername))
                 .build();
         DriveApi.MetadataBufferResult queryResult =
-                driveParent.queryChildren(googleApiClient, getFolder).await();
+                await("queryChildren",
+                        driveParent.queryChildren(client(), getFolder));
 
         if (!queryResult.getStatus().isSuccess()) {
             // TODO: actually handle this
@@ -160,116 +305,830 @@ public class DriveUtils {
         }
 
         MetadataBuffer buffer = queryResult.getMetadataBuffer();
-        Metadata metadata = null;
-        DriveFolder resFolder;
+        try {
+            Metadata metadata = null;
 
-        // If folder already exists, grab it
-        if (buffer.getCount() > 0 && (metadata = buffer.get(0)).isFolder()
-                && !metadata.isTrashed()) {
-            resFolder = buffer.get(0).getDriveId().asDriveFolder();
-        } else {
-            // If the previous folder was trashed by the user, delete the property
-            if (metadata != null && metadata.isTrashed()) {
-                MetadataChangeSet deleteProp = new MetadataChangeSet.Builder()
-                        .deleteCustomProperty(appProp)
-                        .build();
-                metadata.getDriveId().asDriveFolder().updateMetadata(googleApiClient, deleteProp);
+            // If folder already exists, grab it
+            if (buffer.getCount() > 0 && (metadata = buffer.get(0)).isFolder()
+                    && !metadata.isTrashed()) {
+                return metadata.getDriveId().asDriveFolder();
             }
+            return createFolder(foldername, driveParent, metadata);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    // Creates foldername in parent. previous is whatever the app had tagged with that name
+    @Nullable
+    private static DriveFolder createFolder(String foldername, DriveFolder parent,
+                                            @Nullable Metadata previous) {
+        // If the previous folder was trashed by the user, delete the property
+        if (previous != null && previous.isTrashed()) {
+            untag(previous);
+        }
+
+        DriveFolder.DriveFolderResult folderResult = await("createFolder",
+                parent.createFolder(client(), newFolderChangeSet(foldername)));
+
+        if (!folderResult.getStatus().isSuccess()) {
+            // TODO: actually handle this
+            return null;
+        }
 
-            // Create the folder
-            MetadataChangeSet md = new MetadataChangeSet.Builder()
-                    .setTitle(foldername)
-                    .setCustomProperty(appProp, foldername)
-                    .build();
-            DriveFolder.DriveFolderResult folderResult =
-                    driveParent.createFolder(googleApiClient, md).await();
+        return folderResult.getDriveFolder();
+    }
 
-            if (!folderResult.getStatus().isSuccess()) {
-                // TODO: actually handle this
+    private static MetadataChangeSet newFolderChangeSet(String foldername) {
+        return new MetadataChangeSet.Builder()
+                .setTitle(foldername)
+                .setCustomProperty(appProp, foldername)
+                .build();
+    }
+
+    // Removes the app's tag from a trashed resource, so it no longer answers to its name
+    private static void untag(Metadata trashed) {
+        MetadataChangeSet deleteProp = new MetadataChangeSet.Builder()
+                .deleteCustomProperty(appProp)
+                .build();
+        // TODO: check if this actually works
+        trashed.getDriveId().asDriveResource().updateMetadata(client(), deleteProp);
+    }
+
+    /**
+     * Finds (or creates) one of the app's own folders under its root, such as the object
+     * store's, and lists its children. name must start with '#' so it can't collide with a
+     * backed up directory.
+     */
+    @Nullable
+    public static FolderListing getAppFolder(String name) {
+        DriveFolder folder = getCachedFolder(name);
+        if (folder == null) {
+            DriveFolder driveRoot = getRoot();
+            if (driveRoot == null) {
                 return null;
             }
+            folder = getFolder(name, driveRoot);
+            cacheFolder(name, folder);
+        }
 
-            resFolder = folderResult.getDriveFolder();
+        FolderListing listing = (folder != null) ? listFolder(folder) : null;
+        if (listing == null && folderCache != null) {
+            folderCache.invalidate(name);
         }
-        return resFolder;
+        return listing;
     }
 
-    /*--------------- DriveFiles ---------------*/
+    /*--------------- Object store ---------------*/
+
+    /**
+     * Opens the content-addressed object store, creating its folder if needed.
+     */
+    @Nullable
+    public static ObjectStore openObjectStore() {
+        FolderListing listing = getAppFolder(ObjectStore.FOLDER_NAME);
+        return (listing != null) ? new ObjectStore(listing) : null;
+    }
+
+    /**
+     * Creates the object key in the store's folder from file's contents. The contents are
+     * hashed again on their way up; if they no longer hash to key, because the file changed
+     * since it was hashed, the new object is trashed so no object ever holds the wrong content.
+     */
+    static boolean uploadObject(File file, String key, FolderListing objects,
+                                @Nullable LocalFiles.OnProgressListener listener)
+            throws IOException, NoSuchAlgorithmException {
+        AdaptiveConcurrency.Permit permit = acquireUploadSlot();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            success = doUploadObject(file, key, objects, listener);
+            return success;
+        } finally {
+            releaseUploadSlot(permit, file.length(), success);
+            RunStats.current().phase(RunStats.PHASE_UPLOAD, start);
+        }
+    }
 
-    public static boolean uploadFile(File file, @Nullable DriveFolder parent) throws IOException {
+    private static boolean doUploadObject(File file, String key, FolderListing objects,
+                                          @Nullable LocalFiles.OnProgressListener listener)
+            throws IOException, NoSuchAlgorithmException {
         if (!file.isFile()) {
             String eMsg = file.getName() + " is not an existing file";
             Log.e(TAG, eMsg);
             throw new FileNotFoundException(eMsg);
         }
 
-        DriveFolder driveParent = (parent != null) ? parent : getRoot();
+        DriveApi.DriveContentsResult contentsResult =
+                await("newDriveContents", Drive.DriveApi.newDriveContents(client()));
+        if (!contentsResult.getStatus().isSuccess()) {
+            return false;
+        }
 
-        // Search Drive to see if file already exists
-        Query getFile = new Query.Builder()
-                .addFilter(Filters.eq(appProp, file.getName()))
-                .build();
-        DriveApi.MetadataBufferResult queryResult =
-                driveParent.queryChildren(googleApiClient, getFile).await();
+        MessageDigest digest = LocalFiles.newDigest();
+        DriveContents contents = contentsResult.getDriveContents();
+        MetadataChangeSet md = writeToContents(file, key, contents, listener, digest, null,
+                false);
+        DriveFolder.DriveFileResult fileResult =
+                await("createFile",
+                        objects.folder.createFile(client(), md, contents));
+        if (!fileResult.getStatus().isSuccess()) {
+            return false;
+        }
+
+        if (!key.equals(LocalFiles.toHex(digest.digest()))) {
+            await("trash", fileResult.getDriveFile().trash(client()));
+            String eMsg = file.getName() + " changed while it was uploading";
+            Log.e(TAG, eMsg);
+            throw new IOException(eMsg);
+        }
+        return true;
+    }
+
+    /*--------------- DriveFiles ---------------*/
+
+    /**
+     * Uploads the contents of file into the parent folder under the given name, overwriting
+     * the copy there if it has one. The name need not be file's own (a delta, for instance, is
+     * uploaded from a scratch file). Whether the folder has a copy is answered by the parent's
+     * listing, not by a query. Returns true only once Drive has confirmed the write. If digest
+     * and signature are given they are fed the uploaded bytes.
+     */
+    public static boolean uploadFile(File file, String name, @Nullable FolderListing parent,
+                                     @Nullable LocalFiles.OnProgressListener listener,
+                                     @Nullable MessageDigest digest,
+                                     @Nullable DeltaSync.SignatureBuilder signature)
+            throws IOException {
+        return uploadFile(file, name, parent, listener, digest, signature, false);
+    }
+
+    /**
+     * Uploads file like {@link #uploadFile(File, String, FolderListing,
+     * LocalFiles.OnProgressListener, MessageDigest, DeltaSync.SignatureBuilder)} under its own
+     * name, gzipping it on the way if that saves at least minSavingPercent (see
+     * {@link Compression}). A compressed file is stored under its name plus
+     * {@link Compression#SUFFIX}, and whichever of the two copies this upload didn't write is
+     * trashed, so a file never has both. digest and signature are fed the raw bytes.
+     */
+    public static boolean uploadFileCompressed(File file, FolderListing parent,
+                                               @Nullable LocalFiles.OnProgressListener listener,
+                                               @Nullable MessageDigest digest,
+                                               @Nullable DeltaSync.SignatureBuilder signature,
+                                               int minSavingPercent) throws IOException {
+        boolean compress = Compression.isCompressible(FileUtils.getMimeType(file.getName()))
+                && Compression.sampleCompresses(file, minSavingPercent);
+        String name = file.getName() + (compress ? Compression.SUFFIX : "");
+        if (!uploadFile(file, name, parent, listener, digest, signature, compress)) {
+            return false;
+        }
+
+        String stale = compress ? file.getName() : file.getName() + Compression.SUFFIX;
+        trashChild(parent, stale);
+        return true;
+    }
+
+    private static boolean uploadFile(File file, String name, @Nullable FolderListing parent,
+                                      @Nullable LocalFiles.OnProgressListener listener,
+                                      @Nullable MessageDigest digest,
+                                      @Nullable DeltaSync.SignatureBuilder signature,
+                                      boolean compress) throws IOException {
+        AdaptiveConcurrency.Permit permit = acquireUploadSlot();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            success = doUploadFile(file, name, parent, listener, digest, signature, compress);
+            return success;
+        } finally {
+            releaseUploadSlot(permit, file.length(), success);
+            RunStats.current().phase(RunStats.PHASE_UPLOAD, start);
+        }
+    }
+
+    private static boolean doUploadFile(File file, String name, @Nullable FolderListing parent,
+                                        @Nullable LocalFiles.OnProgressListener listener,
+                                        @Nullable MessageDigest digest,
+                                        @Nullable DeltaSync.SignatureBuilder signature,
+                                        boolean compress) throws IOException {
+        if (!file.isFile()) {
+            String eMsg = file.getName() + " is not an existing file";
+            Log.e(TAG, eMsg);
+            throw new FileNotFoundException(eMsg);
+        }
+
+        FolderListing listing = (parent != null) ? parent : listRoot();
+        if (listing == null) {
+            return false;
+        }
+        DriveFolder driveParent = listing.folder;
 
         // If the file exists (and is not in the trash), overwrite it
-        MetadataBuffer buffer = queryResult.getMetadataBuffer();
-        Metadata metadata = null;
-        if (buffer.getCount() > 0 && !(metadata = buffer.get(0)).isFolder()
-                && !metadata.isTrashed()) {
-            DriveFile driveFile = buffer.get(0).getDriveId().asDriveFile();
-            DriveApi.DriveContentsResult contentsResult = driveFile
-                    .open(googleApiClient, DriveFile.MODE_WRITE_ONLY, null) // TODO: add progress listener option
-                    .await();
+        Metadata metadata = listing.get(name);
+        if (metadata != null && !metadata.isFolder() && !metadata.isTrashed()) {
+            DriveFile driveFile = metadata.getDriveId().asDriveFile();
+            DriveApi.DriveContentsResult contentsResult = await("open",
+                    driveFile.open(client(), DriveFile.MODE_WRITE_ONLY, null));
 
             if (!contentsResult.getStatus().isSuccess()) {
                 return false;
             }
 
             DriveContents contents = contentsResult.getDriveContents();
-            MetadataChangeSet md = writeToContents(file, contents);
-            contents.commit(googleApiClient, md);
+            MetadataChangeSet md = writeToContents(file, name, contents, listener,
+                    digest, signature, compress);
+            return await("commit", contents.commit(client(), md)).isSuccess();
         } else {
             if (metadata != null && metadata.isTrashed()) {
-                MetadataChangeSet deleteProp = new MetadataChangeSet.Builder()
-                        .deleteCustomProperty(appProp)
-                        .build();
-                // TODO: check if this actually works
-                metadata.getDriveId().asDriveFile().updateMetadata(googleApiClient, deleteProp);
+                untag(metadata);
             }
 
             DriveApi.DriveContentsResult contentsResult =
-                    Drive.DriveApi.newDriveContents(googleApiClient).await();
+                    await("newDriveContents", Drive.DriveApi.newDriveContents(client()));
 
             if (!contentsResult.getStatus().isSuccess()) {
                 return false;
             }
 
             DriveContents contents = contentsResult.getDriveContents();
-            MetadataChangeSet md = writeToContents(file, contents);
-            driveParent.createFile(googleApiClient, md, contents);
+            MetadataChangeSet md = writeToContents(file, name, contents, listener,
+                    digest, signature, compress);
+            return await("createFile", driveParent.createFile(client(), md, contents))
+                    .getStatus().isSuccess();
+        }
+    }
+
+    // Waits for a Drive call, timing it for the run report
+    private static <R extends Result> R await(String call, PendingResult<R> pending) {
+        long start = System.nanoTime();
+        R result = pending.await();
+        RunStats.current().driveCall(call, start);
+        return result;
+    }
+
+    // Waits until the adaptive limit lets one more upload start. Slot holders call progress
+    // listeners, so a caller must not hold any lock those listeners take
+    private static AdaptiveConcurrency.Permit acquireUploadSlot() throws IOException {
+        try {
+            return uploadConcurrency.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to upload");
+        }
+    }
+
+    // Ends an upload, then starts as many waiting asynchronous uploads as the limit allows
+    private static void releaseUploadSlot(AdaptiveConcurrency.Permit permit, long bytes,
+                                          boolean success) {
+        uploadConcurrency.release(permit, bytes, success);
+        while (true) {
+            AsyncUpload next;
+            AdaptiveConcurrency.Permit nextPermit;
+            synchronized (pendingUploads) {
+                if (pendingUploads.isEmpty()
+                        || (nextPermit = uploadConcurrency.tryAcquire()) == null) {
+                    return;
+                }
+                next = pendingUploads.remove();
+            }
+            next.start(nextPermit);
         }
-        return true;
     }
 
     // TODO: possibly change function's return value. (Super unintuitive)
-    private static MetadataChangeSet writeToContents(File src, DriveContents dst) throws IOException {
-        try (OutputStream outputStream = dst.getOutputStream()) {
-            outputStream.write(FileUtils.getFileBytes(src));
+    private static MetadataChangeSet writeToContents(File src, String name, DriveContents dst,
+                                                     @Nullable LocalFiles.OnProgressListener listener,
+                                                     @Nullable MessageDigest digest,
+                                                     @Nullable DeltaSync.SignatureBuilder signature,
+                                                     boolean compress)
+            throws IOException {
+        // Stream the file rather than reading it whole, so large files don't exhaust the heap
+        // Throttled after compression, so the limit applies to the bytes actually sent
+        OutputStream throttled = rateLimiter.wrap(
+                RunStats.current().counting(dst.getOutputStream(), RunStats.BYTES_SENT));
+        try (OutputStream outputStream = compress
+                ? Compression.compress(throttled) : throttled) {
+            LocalFiles.copyFile(src, outputStream, listener, digest, signature);
         } catch (IOException e) {
-            String eMsg = "Could not upload " + src.getName() + " to Google Drive";
+            String eMsg = "Could not upload " + name + " to Google Drive";
             Log.e(TAG, eMsg);
             throw new IOException(eMsg);
         }
 
         // Create the metadata - MIME type and title
-        String mimeType = FileUtils.getMimeType(src.getName());
+        String mimeType = FileUtils.getMimeType(name);
         mimeType = (mimeType != null) ? mimeType : "text/plain";
 
         return new MetadataChangeSet.Builder()
-                .setTitle(src.getName())
+                .setTitle(name)
                 .setMimeType(mimeType) // TODO: make sure this is doing something
-                .setCustomProperty(appProp, src.getName())
+                .setCustomProperty(appProp, name)
+                .build();
+    }
+
+    /**
+     * Trashes the deltas uploaded for the file called name since its last full upload, ahead
+     * of a new full upload that makes them meaningless. Returns false if any is left behind.
+     */
+    public static boolean trashDeltas(FolderListing parent, String name) {
+        boolean res = true;
+        for (int n = 1; parent.get(DeltaSync.deltaName(name, n)) != null; n++) {
+            res &= trashChild(parent, DeltaSync.deltaName(name, n));
+        }
+        return res;
+    }
+
+    /**
+     * Trashes the child of parent the app tagged with name, if it has a live one. Returns
+     * false only if the child is still there.
+     */
+    public static boolean trashChild(FolderListing parent, String name) {
+        Metadata metadata = parent.get(name);
+        if (metadata == null || metadata.isTrashed()) {
+            return true;
+        }
+        if (!await("trash", metadata.getDriveId().asDriveResource().trash(client()))
+                .isSuccess()) {
+            Log.e(TAG, "Could not trash " + name);
+            return false;
+        }
+        parent.remove(name);
+        return true;
+    }
+
+    /*--------------- Asynchronous calls ---------------*/
+    /* Note: none of these block. Each request is handed to Drive with a callback, so a few
+     * threads can keep any number of calls in flight. Callbacks are called on the API
+     * client's thread or the shared executor's */
+
+    // How long each asynchronous call may take before its callback fails
+    private static volatile long callTimeoutMillis = Settings.DEFAULT_CALL_TIMEOUT_SECONDS * 1000;
+
+    // Writes the contents of asynchronous uploads, which the client's thread must not do, and
+    // keeps every asynchronous call's deadline
+    private static final AsyncCalls async =
+            new AsyncCalls("drive-async", Settings.DEFAULT_UPLOAD_THREADS);
+    // Asynchronous uploads waiting for the upload concurrency to let them start
+    private static final Queue<AsyncUpload> pendingUploads = new ArrayDeque<>();
+
+    /**
+     * Sets how long each asynchronous call may take, from when it is made until its callback
+     * is called. Each request a call sends to Drive is given as long.
+     */
+    public static void setCallTimeout(long timeoutMillis) {
+        callTimeoutMillis = Math.max(1, timeoutMillis);
+    }
+
+    /**
+     * Stops the executor the asynchronous calls share. Call once none are in flight, at the
+     * end of a run. A later call starts it again.
+     */
+    public static void shutdownAsync() {
+        async.shutdown();
+    }
+
+    /**
+     * Like {@link #getFolder(File, FolderListing)}, without blocking.
+     */
+    public static void getFolderAsync(File folder, @Nullable FolderListing parent,
+                                      AsyncCalls.Callback<FolderListing> callback) {
+        resolveFolderAsync(folder, parent, withDeadline("getFolder", callback));
+    }
+
+    /**
+     * Like {@link #listFolder(DriveFolder)}, without blocking.
+     */
+    public static void listFolderAsync(DriveFolder folder,
+                                       AsyncCalls.Callback<FolderListing> callback) {
+        sendListChildren(folder, withDeadline("listChildren", callback));
+    }
+
+    /**
+     * Fetches the metadata of a file or folder without blocking.
+     */
+    public static void getMetadataAsync(DriveResource resource,
+                                        AsyncCalls.Callback<Metadata> callback) {
+        sendGetMetadata(resource, withDeadline("getMetadata", callback));
+    }
+
+    /**
+     * Like {@link #uploadFile(File, String, FolderListing, LocalFiles.OnProgressListener,
+     * MessageDigest, DeltaSync.SignatureBuilder)}, without blocking. The upload waits its turn
+     * under the same adaptive limit as blocking uploads, without holding a thread meanwhile,
+     * and that wait counts toward its timeout. The callback is given the ID of the file written.
+     */
+    public static void uploadFileAsync(File file, String name, FolderListing parent,
+                                       @Nullable LocalFiles.OnProgressListener listener,
+                                       @Nullable MessageDigest digest,
+                                       @Nullable DeltaSync.SignatureBuilder signature,
+                                       AsyncCalls.Callback<DriveId> callback) {
+        callback = withDeadline("uploadFile", callback);
+        if (!file.isFile()) {
+            fail(callback, new FileNotFoundException(file.getName() + " is not an existing file"));
+            return;
+        }
+
+        AsyncUpload upload = new AsyncUpload(file, name, parent, listener, digest, signature,
+                callback);
+        AdaptiveConcurrency.Permit permit;
+        synchronized (pendingUploads) {
+            permit = uploadConcurrency.tryAcquire();
+            if (permit == null) {
+                pendingUploads.add(upload);
+                return;
+            }
+        }
+        upload.start(permit);
+    }
+
+    // Fails callback if the call it is given to doesn't end within the call timeout
+    private static <T> AsyncCalls.Callback<T> withDeadline(String call,
+                                                            AsyncCalls.Callback<T> callback) {
+        return async.withTimeout("Drive call " + call, callTimeoutMillis, callback);
+    }
+
+    // The steps of getFolderAsync, which call the steps of other calls, not the calls, so the
+    // only deadline is the one getFolderAsync set
+    private static void resolveFolderAsync(File folder, @Nullable FolderListing parent,
+                                           final AsyncCalls.Callback<FolderListing> callback) {
+        if (!folder.isDirectory()) {
+            fail(callback, new FileNotFoundException(folder.getName()
+                    + " is not an existing directory"));
+            return;
+        }
+
+        final String name = folder.getName();
+        if (parent != null) {
+            // The parent's listing already tells whether the folder exists
+            Metadata metadata = parent.get(name);
+            if (metadata != null && metadata.isFolder() && !metadata.isTrashed()) {
+                sendListChildren(metadata.getDriveId().asDriveFolder(), callback);
+            } else {
+                createFolderAsync(name, parent.folder, metadata, new Then<DriveFolder>(callback) {
+                    @Override
+                    public void onResult(DriveFolder created) {
+                        sendListChildren(created, callback);
+                    }
+                });
+            }
+            return;
+        }
+
+        // Top level folders would need a query, so they go through the folder cache
+        final String key = FileUtils.getRelativePath(folder);
+        getCachedFolderAsync(key, new Then<DriveFolder>(callback) {
+            @Override
+            public void onResult(@Nullable DriveFolder cached) {
+                if (cached != null) {
+                    listTopFolderAsync(cached, key, callback);
+                    return;
+                }
+                getRootAsync(new Then<DriveFolder>(callback) {
+                    @Override
+                    public void onResult(DriveFolder driveRoot) {
+                        queryFolderAsync(name, driveRoot, new Then<DriveFolder>(callback) {
+                            @Override
+                            public void onResult(DriveFolder found) {
+                                cacheFolder(key, found);
+                                listTopFolderAsync(found, key, callback);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    // listFolderAsync without a deadline, as a step of a longer call
+    private static void sendListChildren(final DriveFolder folder,
+                                         final AsyncCalls.Callback<FolderListing> callback) {
+        send("listChildren", folder.listChildren(client()),
+                new Then<DriveApi.MetadataBufferResult>(callback) {
+                    @Override
+                    public void onResult(DriveApi.MetadataBufferResult result) {
+                        callback.onResult(newListing(folder, result.getMetadataBuffer()));
+                    }
+                });
+    }
+
+    // getMetadataAsync without a deadline, as a step of a longer call
+    private static void sendGetMetadata(DriveResource resource,
+                                        final AsyncCalls.Callback<Metadata> callback) {
+        send("getMetadata", resource.getMetadata(client()),
+                new Then<DriveResource.MetadataResult>(callback) {
+                    @Override
+                    public void onResult(DriveResource.MetadataResult result) {
+                        callback.onResult(result.getMetadata());
+                    }
+                });
+    }
+
+    // Calls back with the folder cached for key if Drive still has it, or with null
+    private static void getCachedFolderAsync(final String key,
+                                             final AsyncCalls.Callback<DriveFolder> callback) {
+        final DriveFolder cached = decodeCachedFolder(key);
+        if (cached == null) {
+            callback.onResult(null);
+            return;
+        }
+
+        sendGetMetadata(cached, new AsyncCalls.Callback<Metadata>() {
+            @Override
+            public void onResult(Metadata metadata) {
+                if (metadata.isTrashed()) {
+                    onFailure(null);
+                } else {
+                    callback.onResult(cached);
+                }
+            }
+
+            @Override
+            public void onFailure(@Nullable IOException e) {
+                // Gone or unreachable, either way the entry can't be trusted
+                FolderCache cache = folderCache;
+                if (cache != null) {
+                    cache.invalidate(key);
+                }
+                callback.onResult(null);
+            }
+        });
+    }
+
+    // Only the first of several concurrent calls resolves the root, and the rest wait for it
+    private static void getRootAsync(AsyncCalls.Callback<DriveFolder> callback) {
+        DriveFolder resolved;
+        synchronized (rootWaiters) {
+            resolved = root;
+            if (resolved == null) {
+                rootWaiters.add(callback);
+                if (rootWaiters.size() > 1) {
+                    return;
+                }
+            }
+        }
+        if (resolved != null) {
+            callback.onResult(resolved);
+            return;
+        }
+
+        final AsyncCalls.Callback<DriveFolder> done = new AsyncCalls.Callback<DriveFolder>() {
+            @Override
+            public void onResult(DriveFolder found) {
+                for (AsyncCalls.Callback<DriveFolder> waiter : takeRootWaiters(found)) {
+                    waiter.onResult(found);
+                }
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                for (AsyncCalls.Callback<DriveFolder> waiter : takeRootWaiters(null)) {
+                    waiter.onFailure(e);
+                }
+            }
+        };
+        getCachedFolderAsync(FolderCache.ROOT_KEY, new Then<DriveFolder>(done) {
+            @Override
+            public void onResult(@Nullable DriveFolder cached) {
+                if (cached != null) {
+                    done.onResult(cached);
+                    return;
+                }
+                queryFolderAsync(ROOT_NAME, null, new Then<DriveFolder>(done) {
+                    @Override
+                    public void onResult(DriveFolder found) {
+                        cacheFolder(FolderCache.ROOT_KEY, found);
+                        done.onResult(found);
+                    }
+                });
+            }
+        });
+    }
+
+    // Publishes the resolved root, if any, and returns everyone who was waiting for it
+    private static List<AsyncCalls.Callback<DriveFolder>> takeRootWaiters(
+            @Nullable DriveFolder found) {
+        synchronized (rootWaiters) {
+            if (found != null) {
+                root = found;
+            }
+            List<AsyncCalls.Callback<DriveFolder>> waiters = new ArrayList<>(rootWaiters);
+            rootWaiters.clear();
+            return waiters;
+        }
+    }
+
+    // Lists a top level folder, dropping it from the folder cache if that fails
+    private static void listTopFolderAsync(DriveFolder folder, final String key,
+                                           final AsyncCalls.Callback<FolderListing> callback) {
+        sendListChildren(folder, new Then<FolderListing>(callback) {
+            @Override
+            public void onResult(FolderListing listing) {
+                callback.onResult(listing);
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                if (folderCache != null) {
+                    folderCache.invalidate(key);
+                }
+                super.onFailure(e);
+            }
+        });
+    }
+
+    // Finds the folder the app tagged with foldername in parent, creating it if need be
+    private static void queryFolderAsync(final String foldername, @Nullable DriveFolder parent,
+                                         final AsyncCalls.Callback<DriveFolder> callback) {
+        final DriveFolder driveParent =
+                (parent != null) ? parent : Drive.DriveApi.getRootFolder(client());
+        Query getFolder = new Query.Builder()
+                .addFilter(Filters.eq(appProp, foldername))
                 .build();
+        send("queryChildren", driveParent.queryChildren(client(), getFolder),
+                new Then<DriveApi.MetadataBufferResult>(callback) {
+                    @Override
+                    public void onResult(DriveApi.MetadataBufferResult result) {
+                        Metadata metadata = null;
+                        MetadataBuffer buffer = result.getMetadataBuffer();
+                        try {
+                            if (buffer.getCount() > 0) {
+                                metadata = buffer.get(0).freeze();
+                            }
+                        } finally {
+                            buffer.release();
+                        }
+
+                        if (metadata != null && metadata.isFolder() && !metadata.isTrashed()) {
+                            callback.onResult(metadata.getDriveId().asDriveFolder());
+                        } else {
+                            createFolderAsync(foldername, driveParent, metadata, callback);
+                        }
+                    }
+                });
+    }
+
+    private static void createFolderAsync(String foldername, DriveFolder parent,
+                                          @Nullable Metadata previous,
+                                          final AsyncCalls.Callback<DriveFolder> callback) {
+        if (previous != null && previous.isTrashed()) {
+            untag(previous);
+        }
+        send("createFolder", parent.createFolder(client(), newFolderChangeSet(foldername)),
+                new Then<DriveFolder.DriveFolderResult>(callback) {
+                    @Override
+                    public void onResult(DriveFolder.DriveFolderResult result) {
+                        callback.onResult(result.getDriveFolder());
+                    }
+                });
+    }
+
+    // Sends a request, timed for the run report, and passes its result on once it succeeds.
+    // A request that fails or times out fails then instead
+    private static <R extends Result> void send(final String call, PendingResult<R> request,
+                                                final AsyncCalls.Callback<? super R> then) {
+        final long start = System.nanoTime();
+        request.setResultCallback(new ResultCallback<R>() {
+            @Override
+            public void onResult(@NonNull R result) {
+                RunStats.current().driveCall(call, start);
+                Status status = result.getStatus();
+                if (status.isSuccess()) {
+                    then.onResult(result);
+                } else {
+                    fail(then, new IOException("Drive call " + call + " failed: "
+                            + CommonStatusCodes.getStatusCodeString(status.getStatusCode())));
+                }
+            }
+        }, callTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void fail(AsyncCalls.Callback<?> callback, IOException e) {
+        Log.e(TAG, e.getMessage());
+        callback.onFailure(e);
+    }
+
+    // A step in a chain of asynchronous calls, which passes a failure on to the next step
+    private abstract static class Then<T> implements AsyncCalls.Callback<T> {
+        private final AsyncCalls.Callback<?> next;
+
+        Then(AsyncCalls.Callback<?> next) {
+            this.next = next;
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            next.onFailure(e);
+        }
+    }
+
+    // An upload in flight, making the same requests as doUploadFile. It is also the callback
+    // that ends the upload, freeing its slot before telling the caller
+    private static class AsyncUpload implements AsyncCalls.Callback<DriveId> {
+        private final File file;
+        private final String name;
+        private final FolderListing parent;
+        private final LocalFiles.OnProgressListener listener;
+        private final MessageDigest digest;
+        private final DeltaSync.SignatureBuilder signature;
+        private final AsyncCalls.Callback<DriveId> callback;
+
+        private AdaptiveConcurrency.Permit permit;
+        private long start;
+
+        AsyncUpload(File file, String name, FolderListing parent,
+                    @Nullable LocalFiles.OnProgressListener listener,
+                    @Nullable MessageDigest digest,
+                    @Nullable DeltaSync.SignatureBuilder signature,
+                    AsyncCalls.Callback<DriveId> callback) {
+            this.file = file;
+            this.name = name;
+            this.parent = parent;
+            this.listener = listener;
+            this.digest = digest;
+            this.signature = signature;
+            this.callback = callback;
+        }
+
+        void start(AdaptiveConcurrency.Permit permit) {
+            this.permit = permit;
+            start = System.nanoTime();
+
+            // If the file exists (and is not in the trash), overwrite it
+            Metadata metadata = parent.get(name);
+            if (metadata != null && !metadata.isFolder() && !metadata.isTrashed()) {
+                final DriveFile driveFile = metadata.getDriveId().asDriveFile();
+                send("open", driveFile.open(client(), DriveFile.MODE_WRITE_ONLY, null),
+                        new Then<DriveApi.DriveContentsResult>(this) {
+                            @Override
+                            public void onResult(DriveApi.DriveContentsResult result) {
+                                write(result.getDriveContents(), driveFile.getDriveId());
+                            }
+                        });
+            } else {
+                if (metadata != null && metadata.isTrashed()) {
+                    untag(metadata);
+                }
+                send("newDriveContents", Drive.DriveApi.newDriveContents(client()),
+                        new Then<DriveApi.DriveContentsResult>(this) {
+                            @Override
+                            public void onResult(DriveApi.DriveContentsResult result) {
+                                write(result.getDriveContents(), null);
+                            }
+                        });
+            }
+        }
+
+        // Fills contents on the shared executor, then commits them over the existing file,
+        // or as a new file if there is none
+        private void write(final DriveContents contents, @Nullable final DriveId existing) {
+            async.execute(new Runnable() {
+                @Override
+                public void run() {
+                    MetadataChangeSet md;
+                    try {
+                        md = writeToContents(file, name, contents, listener, digest, signature,
+                                false);
+                    } catch (IOException e) {
+                        contents.discard(client());
+                        onFailure(e);
+                        return;
+                    }
+
+                    if (existing != null) {
+                        send("commit", contents.commit(client(), md),
+                                new Then<Status>(AsyncUpload.this) {
+                                    @Override
+                                    public void onResult(Status status) {
+                                        AsyncUpload.this.onResult(existing);
+                                    }
+                                });
+                    } else {
+                        send("createFile", parent.folder.createFile(client(), md, contents),
+                                new Then<DriveFolder.DriveFileResult>(AsyncUpload.this) {
+                                    @Override
+                                    public void onResult(DriveFolder.DriveFileResult result) {
+                                        AsyncUpload.this.onResult(
+                                                result.getDriveFile().getDriveId());
+                                    }
+                                });
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onResult(DriveId id) {
+            finish(true);
+            callback.onResult(id);
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            finish(false);
+            callback.onFailure(e);
+        }
+
+        private void finish(boolean success) {
+            releaseUploadSlot(permit, file.length(), success);
+            RunStats.current().phase(RunStats.PHASE_UPLOAD, start);
+        }
     }
-}
\ No newline at end of file
+}
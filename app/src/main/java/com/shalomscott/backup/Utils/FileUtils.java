@@ -2,24 +2,28 @@ package com.shalomscott.backup.Utils;
 
 import android.content.Context;
 import android.os.Environment;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.MessageDigest;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 
 public class FileUtils {
     private static final String TAG = "FileUtils";
     private static final String DIRECTORY_HASHES = "hashes";
     private static final String DIRECTORY_CONFIG = "config";
+    private static final String DIRECTORY_CACHE = "cache";
+    private static final String DIRECTORY_SIGNATURES = "signatures";
 
     public static boolean isExternalStorageWritable() {
         String state = Environment.getExternalStorageState();
@@ -34,6 +38,41 @@ public class FileUtils {
         return new File(context.getExternalFilesDir(DIRECTORY_CONFIG), filename);
     }
 
+    /**
+     * Returns file's path relative to external storage, which is how the app keys its state.
+     */
+    public static String getRelativePath(File file) {
+        return LocalFiles.getRelativePath(Environment.getExternalStorageDirectory(), file);
+    }
+
+    /**
+     * Loads the app's hash index, clearing out the per-file hashes of older versions.
+     */
+    public static HashIndex openHashIndex(Context context) throws IOException {
+        File hashesDir = context.getExternalFilesDir(DIRECTORY_HASHES);
+        if (hashesDir == null) {
+            throw new IOException("Could not access the hashes directory");
+        }
+
+        // Older versions kept one <name>.md5 file per backed up file, keyed by name only
+        File[] legacy = hashesDir.listFiles();
+        if (legacy != null) {
+            for (File f : legacy) {
+                if (f.getName().endsWith(".md5") && !f.delete()) {
+                    Log.w(TAG, "Could not delete legacy hash file " + f.getName());
+                }
+            }
+        }
+
+        try {
+            return HashIndex.load(hashesDir);
+        } catch (IOException e) {
+            String eMsg = "Could not load the hash index";
+            Log.e(TAG, eMsg, e);
+            throw new IOException(eMsg);
+        }
+    }
+
     public static String getMimeType(String loc) {
         String type = null;
 
@@ -47,77 +86,102 @@ public class FileUtils {
         return type;
     }
 
-    public static byte[] getFileBytes(File file) throws IOException {
-        int size = (int) file.length(); // TODO: This limits files to roughly 2GB!!
-        byte[] bytes = new byte[size];
+    public static FolderCache openFolderCache(Context context) throws IOException {
+        File cacheDir = context.getExternalFilesDir(DIRECTORY_CACHE);
+        if (cacheDir == null) {
+            throw new IOException("Could not access the cache directory");
+        }
 
-        try (BufferedInputStream buf = new BufferedInputStream(new FileInputStream(file))) {
-            buf.read(bytes, 0, bytes.length);
+        try {
+            return FolderCache.load(cacheDir);
         } catch (IOException e) {
-            String eMsg = "Could not open " + file.getName() + " for reading";
+            String eMsg = "Could not load the folder cache";
             Log.e(TAG, eMsg, e);
             throw new IOException(eMsg);
         }
+    }
 
-        return bytes;
+    public static File getCheckpointFile(Context context) {
+        return new File(context.getExternalFilesDir(DIRECTORY_CACHE), "checkpoint");
     }
 
-    public static boolean hasFileChanged(Context context, File file) throws NoSuchAlgorithmException, IOException {
-        // Get MD5 instance
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            String eMsg = "Could not get MD5 algorithm";
-            Log.e(TAG, eMsg, e);
-            throw new NoSuchAlgorithmException(eMsg);
+    public static File getManifestFile(Context context) {
+        return new File(context.getExternalFilesDir(DIRECTORY_CACHE), "manifest");
+    }
+
+    /**
+     * Returns where the block signature of file's last uploaded version is kept, or null if
+     * the signatures directory can't be accessed.
+     */
+    @Nullable
+    public static File getSignatureFile(Context context, File file)
+            throws NoSuchAlgorithmException {
+        File signaturesDir = context.getExternalFilesDir(DIRECTORY_SIGNATURES);
+        if (signaturesDir == null) {
+            return null;
         }
 
-        // Compute the file's current MD5 value
-        byte[] hashBytes;
-        try (InputStream is = new FileInputStream(file)) {
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
+        // Named by a hash of the path, which may nest arbitrarily deep
+        byte[] pathDigest = LocalFiles.newDigest().digest(
+                getRelativePath(file).getBytes(StandardCharsets.UTF_8));
+        return new File(signaturesDir, LocalFiles.toHex(pathDigest));
+    }
+
+    /**
+     * Writes the content manifest: one line per file whose content is in the object store, in
+     * md5sum's format, giving the digest it is stored under (see {@link ObjectStore}). Files
+     * backed up only as themselves are left out, so every digest listed can be restored.
+     */
+    public static void writeManifest(HashIndex index, ObjectStore store, File manifestFile)
+            throws IOException {
+        Map<String, HashIndex.Entry> entries = new TreeMap<>(index.snapshot());
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(manifestFile), "UTF-8"))) {
+            for (Map.Entry<String, HashIndex.Entry> entry : entries.entrySet()) {
+                String key = LocalFiles.toHex(entry.getValue().digest);
+                if (store.contains(key)) {
+                    writer.write(key + "  " + entry.getKey() + "\n");
+                }
             }
-            hashBytes = digest.digest();
         } catch (IOException e) {
-            String eMsg = "Could not open " + file.getName() + " for reading";
+            String eMsg = "Could not write the manifest";
             Log.e(TAG, eMsg, e);
             throw new IOException(eMsg);
         }
+    }
 
-        // Compare the saved hash to the new one
-        boolean retVal = false;
-        File hashFile = new File(context.getExternalFilesDir(DIRECTORY_HASHES), file.getName() + ".md5");
-        if (hashFile.isFile()) {
-            try (FileInputStream fileInputStream = new FileInputStream(hashFile)) {
-                byte[] buffer = new byte[16]; // MD5 digest is 16B
-                fileInputStream.read(buffer);
-                if (!Arrays.equals(buffer, hashBytes)) {
-                    retVal = true;
-                }
-            } catch (IOException e) {
-                String eMsg = "Could not read hash file for " + file.getName();
-                Log.e(TAG, eMsg, e);
-                throw new IOException(eMsg);
-            }
-        } else {
-            retVal = true;
+    /**
+     * Sets up the writer that packs small files into bundles. Its index of which file went into
+     * which bundle is kept next to the hash index.
+     */
+    public static BundleWriter openBundleWriter(Context context, long targetSize,
+                                                BundleWriter.SegmentUploader uploader)
+            throws IOException {
+        File hashesDir = context.getExternalFilesDir(DIRECTORY_HASHES);
+        File cacheDir = context.getExternalFilesDir(DIRECTORY_CACHE);
+        if (hashesDir == null || cacheDir == null) {
+            throw new IOException("Could not access the bundle directories");
         }
+        return new BundleWriter(hashesDir, cacheDir, targetSize, uploader);
+    }
 
-        // If the hash has changed (or if it never existed), save the new hash
-        if (retVal) {
-            try (FileOutputStream fileOutputStream = new FileOutputStream(hashFile)) {
-                fileOutputStream.write(hashBytes);
-            } catch (IOException e) {
-                String eMsg = "Could not write to hash file for " + file.getName();
-                Log.e(TAG, eMsg, e);
-                throw new IOException(eMsg);
-            }
+    /**
+     * Creates an empty scratch file in the cache directory, for data on its way to Drive.
+     */
+    public static File createTempFile(Context context, String prefix) throws IOException {
+        File cacheDir = context.getExternalFilesDir(DIRECTORY_CACHE);
+        if (cacheDir == null) {
+            throw new IOException("Could not access the cache directory");
         }
+        return File.createTempFile(prefix, null, cacheDir);
+    }
 
-        return retVal;
+    /**
+     * Commits the state of a file once its upload has been confirmed. length and
+     * lastModified must be read before the upload started.
+     */
+    public static void recordUpload(HashIndex index, File file, long length, long lastModified,
+                                    byte[] digest) throws IOException {
+        LocalFiles.recordUpload(index, getRelativePath(file), length, lastModified, digest);
     }
 }
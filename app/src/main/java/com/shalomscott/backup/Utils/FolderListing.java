@@ -0,0 +1,47 @@
+package com.shalomscott.backup.Utils;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.Metadata;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Drive folder together with a snapshot of its children, taken with a single listing, so
+ * every local file in the matching directory is resolved without a query of its own.
+ * Children are keyed by the name the app tagged them with.
+ */
+public class FolderListing {
+    public final DriveFolder folder;
+    private final Map<String, Metadata> children = new HashMap<>();
+
+    FolderListing(DriveFolder folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Returns the child the app tagged with name, or null. A live child is preferred over a
+     * trashed one of the same name.
+     */
+    @Nullable
+    public synchronized Metadata get(String name) {
+        return children.get(name);
+    }
+
+    synchronized void put(String name, Metadata metadata) {
+        Metadata existing = children.get(name);
+        if (existing == null || existing.isTrashed()) {
+            children.put(name, metadata);
+        }
+    }
+
+    synchronized void remove(String name) {
+        children.remove(name);
+    }
+
+    public synchronized int size() {
+        return children.size();
+    }
+}
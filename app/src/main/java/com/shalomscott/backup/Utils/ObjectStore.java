@@ -0,0 +1,84 @@
+package com.shalomscott.backup.Utils;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.drive.Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The app's content-addressed store: one Drive folder holding a single object per distinct
+ * file content, named by the hex MD5 of that content. However many paths share a content,
+ * it is uploaded once; which paths have which content is recorded in the manifest (see
+ * {@link FileUtils#writeManifest}).
+ */
+public class ObjectStore {
+    // Names of the store's folder and the manifest under the app's root folder. Names from
+    // 'backup' can't start with '#', so they never collide with a backed up file
+    public static final String FOLDER_NAME = "#objects";
+    public static final String MANIFEST_NAME = "#manifest";
+
+    private final FolderListing objects;
+    // Objects this run has stored, and those being uploaded right now
+    private final Set<String> stored = new HashSet<>();
+    private final Set<String> uploading = new HashSet<>();
+
+    ObjectStore(FolderListing objects) {
+        this.objects = objects;
+    }
+
+    public synchronized boolean contains(String key) {
+        if (stored.contains(key)) {
+            return true;
+        }
+        Metadata metadata = objects.get(key);
+        return metadata != null && !metadata.isTrashed();
+    }
+
+    /**
+     * Stores file's contents under key, the hex digest of those contents, unless the store
+     * already has them. Workers storing the same key at once upload it only once: the others
+     * wait for that upload and upload it themselves only if it fails.
+     *
+     * @return true if the contents were uploaded, false if they were already stored
+     */
+    public boolean store(File file, String key, @Nullable LocalFiles.OnProgressListener listener)
+            throws IOException, NoSuchAlgorithmException {
+        synchronized (this) {
+            while (uploading.contains(key)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + key);
+                }
+            }
+            if (contains(key)) {
+                return false;
+            }
+            uploading.add(key);
+        }
+
+        boolean success = false;
+        try {
+            success = DriveUtils.uploadObject(file, key, objects, listener);
+            if (!success) {
+                throw new IOException("Could not upload " + file.getName());
+            }
+            return true;
+        } finally {
+            synchronized (this) {
+                uploading.remove(key);
+                if (success) {
+                    stored.add(key);
+                }
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.shalomscott.backup.Utils;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A journal of past runs, kept in a local SQLite database: one row per run, and one per root
+ * (line of 'backup') in each run, so trends across runs can be queried.
+ * <p>
+ * Only the last {@link #MAX_RUNS} runs are kept.
+ */
+public class RunHistory extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "history.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final int MAX_RUNS = 500;
+
+    private static final String TABLE_RUNS = "runs";
+    private static final String TABLE_ROOTS = "roots";
+
+    /**
+     * One run, as recorded when it ended.
+     */
+    public static class Run {
+        public long startedAt;
+        public long durationMs;
+        public String outcome;
+        public long filesScanned;
+        public long filesSkipped;
+        public long filesUploaded;
+        public long filesFailed;
+        public long bytesRead;
+        public long bytesSent;
+
+        /**
+         * Returns the bytes sent per second over the whole run.
+         */
+        public long getThroughput() {
+            return bytesSent * 1000 / Math.max(durationMs, 1);
+        }
+    }
+
+    /**
+     * A root's time in its latest run, against its average over the runs before.
+     */
+    public static class RootTrend {
+        public String path;
+        public long latestMs;
+        public long latestFiles;
+        // -1 if the root has no earlier runs
+        public long previousMs;
+
+        /**
+         * Returns how many times slower the latest run was than the ones before, or 0 if
+         * there is nothing to compare with.
+         */
+        public double getSlowdown() {
+            return (previousMs > 0) ? (double) latestMs / previousMs : 0;
+        }
+    }
+
+    public RunHistory(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_RUNS + " ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "started_at INTEGER NOT NULL, "
+                + "duration_ms INTEGER NOT NULL, "
+                + "outcome TEXT NOT NULL, "
+                + "files_scanned INTEGER NOT NULL, "
+                + "files_skipped INTEGER NOT NULL, "
+                + "files_uploaded INTEGER NOT NULL, "
+                + "files_failed INTEGER NOT NULL, "
+                + "bytes_read INTEGER NOT NULL, "
+                + "bytes_sent INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_ROOTS + " ("
+                + "run_id INTEGER NOT NULL REFERENCES " + TABLE_RUNS + "(id) ON DELETE CASCADE, "
+                + "path TEXT NOT NULL, "
+                + "files_scanned INTEGER NOT NULL, "
+                + "files_uploaded INTEGER NOT NULL, "
+                + "bytes_uploaded INTEGER NOT NULL, "
+                + "failures INTEGER NOT NULL, "
+                + "busy_ms INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX roots_path ON " + TABLE_ROOTS + " (path, run_id)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only one version so far
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    /**
+     * Records a finished run, and drops the oldest runs beyond {@link #MAX_RUNS}.
+     */
+    public void record(RunStats stats, String outcome) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues run = new ContentValues();
+            run.put("started_at", stats.getStartMillis());
+            run.put("duration_ms", stats.getDurationMillis());
+            run.put("outcome", outcome);
+            run.put("files_scanned", stats.get(RunStats.FILES_SCANNED));
+            run.put("files_skipped", stats.get(RunStats.FILES_SKIPPED));
+            run.put("files_uploaded", stats.get(RunStats.FILES_UPLOADED));
+            run.put("files_failed", stats.get(RunStats.FILES_FAILED));
+            run.put("bytes_read", stats.get(RunStats.BYTES_READ));
+            run.put("bytes_sent", stats.get(RunStats.BYTES_SENT));
+            long runId = db.insertOrThrow(TABLE_RUNS, null, run);
+
+            for (RunStats.RootStats root : stats.getRoots()) {
+                if (root.path == null) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put("run_id", runId);
+                values.put("path", root.path);
+                values.put("files_scanned", root.filesScanned.get());
+                values.put("files_uploaded", root.filesUploaded.get());
+                values.put("bytes_uploaded", root.bytesUploaded.get());
+                values.put("failures", root.failures.get());
+                values.put("busy_ms", root.busyNanos.get() / 1000000);
+                db.insertOrThrow(TABLE_ROOTS, null, values);
+            }
+
+            db.delete(TABLE_RUNS, "id <= ?", new String[]{Long.toString(runId - MAX_RUNS)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the latest runs, newest first.
+     */
+    public List<Run> getRecentRuns(int limit) {
+        List<Run> runs = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_RUNS,
+                new String[]{"started_at", "duration_ms", "outcome", "files_scanned",
+                        "files_skipped", "files_uploaded", "files_failed", "bytes_read",
+                        "bytes_sent"},
+                null, null, null, null, "id DESC", Integer.toString(limit));
+        try {
+            while (cursor.moveToNext()) {
+                Run run = new Run();
+                run.startedAt = cursor.getLong(0);
+                run.durationMs = cursor.getLong(1);
+                run.outcome = cursor.getString(2);
+                run.filesScanned = cursor.getLong(3);
+                run.filesSkipped = cursor.getLong(4);
+                run.filesUploaded = cursor.getLong(5);
+                run.filesFailed = cursor.getLong(6);
+                run.bytesRead = cursor.getLong(7);
+                run.bytesSent = cursor.getLong(8);
+                runs.add(run);
+            }
+        } finally {
+            cursor.close();
+        }
+        return runs;
+    }
+
+    /**
+     * Returns the roots (the paths on lines of 'backup') that took longest in their latest run,
+     * slowest first, each with its average over the earlier runs. A root's time covers its
+     * whole tree; directories under it aren't timed apart.
+     */
+    public List<RootTrend> getSlowestRoots(int limit) {
+        List<RootTrend> trends = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT r.path, r.busy_ms, "
+                + "r.files_scanned, (SELECT AVG(p.busy_ms) FROM " + TABLE_ROOTS + " p "
+                + "WHERE p.path = r.path AND p.run_id < r.run_id) "
+                + "FROM " + TABLE_ROOTS + " r "
+                + "WHERE r.run_id = (SELECT MAX(q.run_id) FROM " + TABLE_ROOTS + " q "
+                + "WHERE q.path = r.path) "
+                + "ORDER BY r.busy_ms DESC LIMIT ?", new String[]{Integer.toString(limit)});
+        try {
+            while (cursor.moveToNext()) {
+                RootTrend trend = new RootTrend();
+                trend.path = cursor.getString(0);
+                trend.latestMs = cursor.getLong(1);
+                trend.latestFiles = cursor.getLong(2);
+                trend.previousMs = cursor.isNull(3) ? -1 : Math.round(cursor.getDouble(3));
+                trends.add(trend);
+            }
+        } finally {
+            cursor.close();
+        }
+        return trends;
+    }
+}
@@ -0,0 +1,110 @@
+package com.shalomscott.backup.benchmarks;
+
+import com.shalomscott.backup.Utils.HashIndex;
+import com.shalomscott.backup.Utils.LocalFiles;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A generated tree of files standing in for external storage, with a hash index that already
+ * holds every file, as after a completed backup.
+ * <p>
+ * Every directory holds filesPerDir files of fileSize bytes, and directories above depth hold
+ * fanOut subdirectories as well: depth 0 is a single flat directory, a large fanOut is wide and
+ * a large depth is deep. The contents are random, from a fixed seed.
+ */
+@State(Scope.Benchmark)
+public class FileTree {
+    @Param({"2"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanOut;
+
+    @Param({"50"})
+    public int filesPerDir;
+
+    @Param({"16384"})
+    public int fileSize;
+
+    // Stands in for external storage, which paths in the index are relative to
+    public File storage;
+    // The top of the tree, as named on a line of 'backup'
+    public File root;
+    // Every file in the tree, in no particular order
+    public List<File> files;
+    public HashIndex index;
+
+    private File indexDir;
+
+    @Setup
+    public void setUp() throws Exception {
+        storage = Files.createTempDirectory("backup-bench").toFile();
+        indexDir = new File(storage, ".index");
+        root = new File(storage, "tree");
+
+        files = new ArrayList<>();
+        generate(root, depth, new Random(42), new byte[fileSize]);
+
+        if (!indexDir.mkdir()) {
+            throw new IOException("Could not create " + indexDir);
+        }
+        index = HashIndex.load(indexDir);
+        index.setBatch(Integer.MAX_VALUE, Long.MAX_VALUE);
+        for (File file : files) {
+            LocalFiles.recordUpload(index, LocalFiles.getRelativePath(storage, file),
+                    file.length(), file.lastModified(), LocalFiles.getFileDigest(file));
+        }
+        index.flush();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+        delete(storage);
+    }
+
+    private void generate(File dir, int levels, Random random, byte[] buffer)
+            throws IOException {
+        if (!dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        for (int i = 0; i < filesPerDir; i++) {
+            File file = new File(dir, String.format("file-%05d.dat", i));
+            random.nextBytes(buffer);
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(buffer);
+            }
+            files.add(file);
+        }
+        if (levels > 0) {
+            for (int i = 0; i < fanOut; i++) {
+                generate(new File(dir, String.format("dir-%03d", i)), levels - 1, random,
+                        buffer);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,49 @@
+package com.shalomscott.backup.benchmarks;
+
+import com.shalomscott.backup.Utils.LocalFiles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading every file in the tree into memory, the way uploads used to, against streaming it
+ * through {@link LocalFiles#getFileDigest}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GetFileBytesBenchmark {
+
+    @Benchmark
+    public void getFileBytes(FileTree tree, Blackhole blackhole) throws Exception {
+        for (File file : tree.files) {
+            blackhole.consume(getFileBytes(file));
+        }
+    }
+
+    @Benchmark
+    public void getFileDigest(FileTree tree, Blackhole blackhole) throws Exception {
+        for (File file : tree.files) {
+            blackhole.consume(LocalFiles.getFileDigest(file));
+        }
+    }
+
+    // The baseline: the whole file in one array, so it is limited to files under 2GB
+    private static byte[] getFileBytes(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            in.readFully(bytes);
+        }
+        return bytes;
+    }
+}
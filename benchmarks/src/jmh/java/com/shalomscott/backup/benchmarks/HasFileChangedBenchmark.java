@@ -0,0 +1,42 @@
+package com.shalomscott.backup.benchmarks;
+
+import com.shalomscott.backup.Utils.LocalFiles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LocalFiles#hasFileChanged} over every file in the tree, none of which changed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HasFileChangedBenchmark {
+
+    // The usual case: size and modification time match the index, nothing is read
+    @Benchmark
+    public int unchanged(FileTree tree) throws Exception {
+        return countChanged(tree, false);
+    }
+
+    // --paranoid: every file is hashed and compared to the index
+    @Benchmark
+    public int paranoid(FileTree tree) throws Exception {
+        return countChanged(tree, true);
+    }
+
+    private static int countChanged(FileTree tree, boolean paranoid) throws Exception {
+        int changed = 0;
+        for (File file : tree.files) {
+            String path = LocalFiles.getRelativePath(tree.storage, file);
+            if (LocalFiles.hasFileChanged(tree.index, path, file, paranoid)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+}
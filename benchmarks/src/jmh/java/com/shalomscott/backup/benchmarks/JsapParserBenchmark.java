@@ -0,0 +1,56 @@
+package com.shalomscott.backup.benchmarks;
+
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPResult;
+import com.shalomscott.backup.Utils.JsapParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a 'backup' config file of the given number of lines, which mix the switches a
+ * line may carry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class JsapParserBenchmark {
+    private static final String[] SWITCHES = {"", " -p", " --delta", " --dedup", " -b -z",
+            " --paranoid --compress"};
+
+    @Param({"100"})
+    public int lines;
+
+    private String[] config;
+
+    @Setup
+    public void setUp() throws Exception {
+        config = new String[lines];
+        for (int i = 0; i < lines; i++) {
+            config[i] = "DCIM/folder-" + i + SWITCHES[i % SWITCHES.length];
+        }
+        JsapParser.getInstance(); // Built once per process, like in the app
+    }
+
+    @Benchmark
+    public int parse() throws Exception {
+        JSAP jsap = JsapParser.getInstance();
+        int parsed = 0;
+        for (String line : config) {
+            JSAPResult result = jsap.parse(line);
+            if (!result.success()) {
+                throw new IllegalStateException("Could not parse " + line);
+            }
+            parsed++;
+        }
+        return parsed;
+    }
+}
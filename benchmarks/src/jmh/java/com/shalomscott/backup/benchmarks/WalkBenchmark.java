@@ -0,0 +1,65 @@
+package com.shalomscott.backup.benchmarks;
+
+import com.shalomscott.backup.Utils.BackupEngine;
+import com.shalomscott.backup.Utils.BackupOptions;
+import com.shalomscott.backup.Utils.BackupPipeline;
+import com.shalomscott.backup.Utils.FakeDriveBackend;
+import com.shalomscott.backup.Utils.JsapParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole run over an unchanged tree, the way BackupService drives it: the pipeline walks the
+ * tree and its hash stage checks every file, and nothing reaches the upload stage. Folders are
+ * resolved on a fake Drive with no latency.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class WalkBenchmark {
+    @Param({"2"})
+    public int hashThreads;
+
+    @Param({"false"})
+    public boolean paranoid;
+
+    private BackupOptions options;
+
+    @Setup
+    public void setUp() throws Exception {
+        options = new BackupOptions(JsapParser.getInstance()
+                .parse(paranoid ? "tree --paranoid" : "tree"), 1);
+    }
+
+    @Benchmark
+    public long walk(FileTree tree) throws Exception {
+        BackupEngine<FakeDriveBackend.Folder> engine = new BackupEngine<FakeDriveBackend.Folder>(
+                new FakeDriveBackend(0), tree.index, tree.storage) {
+            @Override
+            protected long uploadChanged(File file, FakeDriveBackend.Folder parent,
+                                         BackupOptions options) {
+                throw new IllegalStateException(file + " should not have changed");
+            }
+        };
+        BackupPipeline<FakeDriveBackend.Folder> pipeline =
+                new BackupPipeline<>(engine, hashThreads, 1, 64);
+
+        pipeline.start();
+        pipeline.walk(tree.root, null, options, null);
+        pipeline.finish();
+        if (pipeline.getError() != null) {
+            throw pipeline.getError();
+        }
+        return pipeline.getCompletedCount();
+    }
+}
@@ -0,0 +1,113 @@
+package com.shalomscott.backup.Utils;
+
+/**
+ * Limits how many uploads are in flight at once, adapting the limit to how the connection
+ * copes (additive increase, multiplicative decrease).
+ * <p>
+ * Each request's latency is turned into a cost per byte, allowing a fixed overhead per request
+ * so small requests compare fairly with large ones. The lowest cost seen so far is the
+ * baseline. A request that succeeds within {@link #TOLERANCE} times the baseline grows the
+ * limit by 1/limit, so about one more slot per round of requests. A request that fails, or
+ * takes longer than that, halves the limit. Only one halving is taken per round: requests
+ * that started before the last decrease can't cause another.
+ */
+public class AdaptiveConcurrency {
+    // How much slower than the baseline a request may be before it counts as congestion
+    static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.5;
+    // A request's fixed cost, in bytes, so an empty request doesn't look infinitely slow
+    private static final long OVERHEAD_BYTES = 64 * 1024;
+    // The baseline creeps up by this factor per request, so it forgets a faster network
+    private static final double BASELINE_DRIFT = 1.001;
+
+    /**
+     * A slot held by one request, from {@link #acquire()} to {@link #release}.
+     */
+    public static class Permit {
+        final long startNanos;
+        // The number of decreases taken when the request started
+        final long epoch;
+
+        Permit(long startNanos, long epoch) {
+            this.startNanos = startNanos;
+            this.epoch = epoch;
+        }
+    }
+
+    private final int minLimit;
+    private int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private double baselineCost = Double.MAX_VALUE;
+    private long epoch = 0;
+
+    public AdaptiveConcurrency(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    public synchronized void setMaxLimit(int maxLimit) {
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        limit = Math.min(limit, this.maxLimit);
+    }
+
+    /**
+     * Returns the number of requests currently allowed in flight.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Blocks until a request may start.
+     */
+    public synchronized Permit acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        return start();
+    }
+
+    /**
+     * Returns a permit if a request may start right away, or null.
+     */
+    public synchronized Permit tryAcquire() {
+        return (inFlight < (int) limit) ? start() : null;
+    }
+
+    /**
+     * Ends the request holding permit, which moved the given number of bytes.
+     */
+    public void release(Permit permit, long bytes, boolean success) {
+        release(permit, bytes, System.nanoTime() - permit.startNanos, success);
+    }
+
+    synchronized void release(Permit permit, long bytes, long elapsedNanos, boolean success) {
+        inFlight--;
+
+        double cost = (double) elapsedNanos / (Math.max(0, bytes) + OVERHEAD_BYTES);
+        if (success) {
+            baselineCost = Math.min(baselineCost * BASELINE_DRIFT, cost);
+        }
+
+        if (!success || cost > baselineCost * TOLERANCE) {
+            if (permit.epoch == epoch) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                epoch++;
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    private Permit start() {
+        inFlight++;
+        return new Permit(System.nanoTime(), epoch);
+    }
+}
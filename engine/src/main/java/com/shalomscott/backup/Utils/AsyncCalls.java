@@ -0,0 +1,125 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor shared by calls that report back through a {@link Callback} instead of
+ * blocking a thread. It runs whatever work such a call can't hand to the remote side, and
+ * the deadline each call is given with {@link #withTimeout}, so a request that never answers
+ * fails instead of leaving its caller waiting.
+ * <p>
+ * The executor is started on first use and stopped by {@link #shutdown()}, which whoever owns
+ * the calls (the backup service, at the end of a run) calls once none are in flight. A call
+ * made after that starts a new one.
+ */
+public class AsyncCalls {
+
+    /**
+     * Receives the outcome of an asynchronous call. Exactly one of the methods is called, once.
+     * They may be called on any thread, even before the call that was given the callback
+     * returns, so neither may block.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onFailure(IOException e);
+    }
+
+    private final String name;
+    private final int threads;
+    // Null until first used, and again once shut down. Guarded by this
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * @param name    names the executor's threads
+     * @param threads how many threads the executor runs work on
+     */
+    public AsyncCalls(String name, int threads) {
+        this.name = name;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns the shared executor, starting it if it isn't running.
+     */
+    public synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+                    // A run that never shut it down mustn't keep the process alive
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // A call that ends in time takes its deadline out of the queue
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        return executor;
+    }
+
+    public void execute(Runnable task) {
+        getExecutor().execute(task);
+    }
+
+    /**
+     * Stops the executor without waiting for it. Work already handed to it still runs, and so
+     * do the deadlines of calls still in flight, after which its threads end.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Returns a callback that passes the first outcome it is given on to callback. If none
+     * comes within timeoutMillis, callback fails instead, and whatever comes later is dropped.
+     */
+    public <T> Callback<T> withTimeout(final String call, final long timeoutMillis,
+                                       final Callback<T> callback) {
+        final AtomicBoolean done = new AtomicBoolean();
+        final ScheduledFuture<?> deadline = getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (done.compareAndSet(false, true)) {
+                    callback.onFailure(new IOException(call + " timed out after "
+                            + timeoutMillis + "ms"));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        return new Callback<T>() {
+            @Override
+            public void onResult(T result) {
+                if (done.compareAndSet(false, true)) {
+                    deadline.cancel(false);
+                    callback.onResult(result);
+                }
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                if (done.compareAndSet(false, true)) {
+                    deadline.cancel(false);
+                    callback.onFailure(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,17 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+
+/**
+ * A {@link StorageBackend} that can also look folders up without blocking, so a walk can go
+ * on while its folders are being resolved (see {@link PipelinedFolders}).
+ *
+ * @param <F> the backend's folder type
+ */
+public interface AsyncStorageBackend<F> extends StorageBackend<F> {
+    /**
+     * Like {@link #getFolder}, without blocking. callback is given the folder, or fails if it
+     * couldn't be found or created within the backend's call timeout.
+     */
+    void getFolderAsync(File directory, F parent, AsyncCalls.Callback<F> callback);
+}
@@ -0,0 +1,132 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The work a backup does for each folder and file, against any {@link StorageBackend}: remote
+ * folders are resolved through the backend, files are checked against the hash index, and
+ * changed ones are uploaded whole and recorded once the upload is confirmed. Every step is
+ * counted in the current {@link RunStats}.
+ * <p>
+ * Hand it to a {@link BackupPipeline} to run a backup. Subclasses can take over the upload of
+ * a changed file through {@link #uploadChanged}.
+ *
+ * @param <F> the backend's folder type
+ */
+public class BackupEngine<F> implements BackupPipeline.Stages<F> {
+    protected final StorageBackend<F> backend;
+    protected final HashIndex index;
+    // Paths in the index are relative to this directory
+    private final File storageRoot;
+
+    public BackupEngine(StorageBackend<F> backend, HashIndex index, File storageRoot) {
+        this.backend = backend;
+        this.index = index;
+        this.storageRoot = storageRoot;
+    }
+
+    public String getRelativePath(File file) {
+        return LocalFiles.getRelativePath(storageRoot, file);
+    }
+
+    @Override
+    public F resolveFolder(File directory, F parent) throws IOException {
+        long start = System.nanoTime();
+        F folder = backend.getFolder(directory, parent);
+        RunStats.current().phase(RunStats.PHASE_GET_FOLDER, start);
+        if (folder == null) {
+            throw new IOException("Could not find or create a folder for "
+                    + directory.getName());
+        }
+        return folder;
+    }
+
+    @Override
+    public boolean hasChanged(File file, BackupOptions options)
+            throws NoSuchAlgorithmException, IOException {
+        RunStats stats = RunStats.current();
+        RunStats.RootStats root = stats.root(options.lineNumber);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean changed = LocalFiles.hasFileChanged(index, getRelativePath(file), file,
+                    options.paranoid);
+            failed = false;
+            stats.count(RunStats.FILES_SCANNED, 1);
+            root.filesScanned.incrementAndGet();
+            if (!changed) {
+                stats.count(RunStats.FILES_SKIPPED, 1);
+            }
+            return changed;
+        } finally {
+            stats.phase(RunStats.PHASE_HAS_CHANGED, start);
+            root.busyNanos.addAndGet(System.nanoTime() - start);
+            if (failed) {
+                stats.count(RunStats.FILES_FAILED, 1);
+                root.failures.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void upload(File file, F parent, BackupOptions options)
+            throws NoSuchAlgorithmException, IOException {
+        RunStats stats = RunStats.current();
+        RunStats.RootStats root = stats.root(options.lineNumber);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            long length = uploadChanged(file, parent, options);
+            failed = false;
+            // A file only queued is counted by whatever uploads it later
+            if (length >= 0) {
+                root.filesUploaded.incrementAndGet();
+                root.bytesUploaded.addAndGet(length);
+            }
+        } finally {
+            root.busyNanos.addAndGet(System.nanoTime() - start);
+            if (failed) {
+                stats.count(RunStats.FILES_FAILED, 1);
+                root.failures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Uploads a file {@link #hasChanged} picked and returns its length, or -1 if an override
+     * only queued it for a later upload, which then counts it in the file's {@link
+     * RunStats.RootStats}. The file is uploaded whole into parent, or the root if parent is
+     * null, and hashed on the way. Its hash is recorded only once the upload went through.
+     */
+    protected long uploadChanged(File file, F parent, BackupOptions options)
+            throws NoSuchAlgorithmException, IOException {
+        // Stat before reading, so a write during the upload is caught by the next run
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        F folder = (parent != null) ? parent : backend.getRoot();
+        MessageDigest digest = LocalFiles.newDigest();
+        backend.upload(file, file.getName(), folder, newProgressListener(file), digest);
+        recordUpload(file, length, lastModified, digest.digest());
+        return length;
+    }
+
+    /**
+     * Commits the state of a file once its upload has been confirmed, and counts it.
+     */
+    protected void recordUpload(File file, long length, long lastModified, byte[] digest)
+            throws IOException {
+        LocalFiles.recordUpload(index, getRelativePath(file), length, lastModified, digest);
+        RunStats.current().count(RunStats.FILES_UPLOADED, 1);
+    }
+
+    /**
+     * Returns the listener told how file's upload is going, or null.
+     */
+    protected LocalFiles.OnProgressListener newProgressListener(File file) {
+        return null;
+    }
+}
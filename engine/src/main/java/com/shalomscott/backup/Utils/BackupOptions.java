@@ -0,0 +1,33 @@
+package com.shalomscott.backup.Utils;
+
+import com.martiansoftware.jsap.JSAPResult;
+
+/**
+ * The options given on a single line of the 'backup' config file.
+ */
+public class BackupOptions {
+    // The line of 'backup' these options were read from (1 based)
+    public final int lineNumber;
+    // Always hash files, instead of trusting their size and modification time
+    public final boolean paranoid;
+    // Upload only the changed blocks of large files (see DeltaSync)
+    public final boolean delta;
+    // Store each distinct content once, wherever it appears (see ObjectStore)
+    public final boolean dedup;
+    // Pack small files into bundles, uploaded a few at a time (see BundleWriter)
+    public final boolean bundle;
+    // Gzip files on their way up when it saves enough (see Compression)
+    public final boolean compress;
+    // Leaves out the paths matching the line's --exclude globs, or null if it has none
+    public final DirectoryWalker.Filter filter;
+
+    public BackupOptions(JSAPResult result, int lineNumber) {
+        this.lineNumber = lineNumber;
+        paranoid = result.getBoolean("paranoid");
+        delta = result.getBoolean("delta");
+        dedup = result.getBoolean("dedup");
+        bundle = result.getBoolean("bundle");
+        compress = result.getBoolean("compress");
+        filter = DirectoryWalker.excluding(result.getStringArray("exclude"));
+    }
+}
@@ -0,0 +1,397 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a backup as three stages connected by bounded queues:
+ * <ol>
+ * <li>walk - the calling thread walks the tree and resolves remote folders (or only starts
+ * resolving them, see {@link PipelinedFolders})</li>
+ * <li>hash - a pool sized to the CPU decides which files changed</li>
+ * <li>upload - a pool sized to the network uploads the changed files</li>
+ * </ol>
+ * A full queue blocks the stage feeding it, so memory stays flat however far one stage runs
+ * ahead of the next. Each stage keeps {@link StageStats} to show which one is the bottleneck.
+ * <p>
+ * Directories are walked in name order (see {@link DirectoryWalker}), so the walk order is
+ * stable between runs. The pipeline tracks the last file before which every file has been
+ * handled (found unchanged or uploaded), and hands out {@link Checkpoint}s of it, from which
+ * a later walk can resume.
+ *
+ * @param <F> the remote folder type files are uploaded into
+ */
+public class BackupPipeline<F> {
+
+    public interface Stages<F> {
+        F resolveFolder(File directory, F parent) throws Exception;
+
+        boolean hasChanged(File file, BackupOptions options) throws Exception;
+
+        void upload(File file, F parent, BackupOptions options) throws Exception;
+    }
+
+    public interface CheckpointListener {
+        void onCheckpoint(Checkpoint checkpoint);
+    }
+
+    /**
+     * Throughput counters for a single stage.
+     */
+    public static class StageStats {
+        public final String name;
+        public final int threads;
+        // Files handled by the stage
+        public final AtomicLong items = new AtomicLong();
+        // Bytes in the files handled by the stage
+        public final AtomicLong bytes = new AtomicLong();
+        // Time spent doing the stage's work, summed over its threads
+        public final AtomicLong busyNanos = new AtomicLong();
+        // Time spent waiting for room in the next stage's queue
+        public final AtomicLong blockedNanos = new AtomicLong();
+
+        private volatile long startNanos;
+        private volatile long endNanos;
+
+        StageStats(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        public long elapsedNanos() {
+            long end = (endNanos != 0) ? endNanos : System.nanoTime();
+            return (startNanos != 0) ? end - startNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(elapsedNanos(), 1) / 1e9;
+            double busy = 100.0 * busyNanos.get() / Math.max(elapsedNanos() * threads, 1);
+            double blocked = 100.0 * blockedNanos.get() / Math.max(elapsedNanos() * threads, 1);
+            return String.format(Locale.US,
+                    "%s x%d: %d files in %.1fs (%.1f files/s, %.2f MB/s), busy %.0f%%, blocked %.0f%%",
+                    name, threads, items.get(), seconds, items.get() / seconds,
+                    bytes.get() / seconds / (1024 * 1024), busy, blocked);
+        }
+    }
+
+    private static class Task<F> {
+        final File file;
+        final F parent;
+        final BackupOptions options;
+        // Set once the file was found unchanged or was uploaded
+        boolean done;
+
+        Task(File file, F parent, BackupOptions options) {
+            this.file = file;
+            this.parent = parent;
+            this.options = options;
+        }
+    }
+
+    // Tells a stage thread that no more tasks are coming
+    private final Task<F> poison = new Task<>(null, null, null);
+
+    private final Stages<F> stages;
+    private final BlockingQueue<Task<F>> hashQueue;
+    private final BlockingQueue<Task<F>> uploadQueue;
+    private final Thread[] hashThreads;
+    private final Thread[] uploadThreads;
+
+    private final StageStats walkStats;
+    private final StageStats hashStats;
+    private final StageStats uploadStats;
+
+    private volatile boolean isCanceled = false;
+    private final AtomicReference<Exception> error = new AtomicReference<>();
+
+    // Walked files not yet known to be done, in walk order. Guarded by itself
+    private final ArrayDeque<Task<F>> outstanding = new ArrayDeque<>();
+    // The last file before which every walked file is done. Guarded by outstanding
+    private int cursorLine;
+    private String cursorPath;
+
+    // Files found unchanged or uploaded by this pipeline
+    private final AtomicLong completed = new AtomicLong();
+
+    private CheckpointListener checkpointListener;
+    private long checkpointMillis;
+    private long lastCheckpointMillis;
+
+    // Number of in-flight files recorded in a checkpoint
+    private static final int MAX_IN_FLIGHT = 100;
+
+    public BackupPipeline(Stages<F> stages, int hashThreadCount, int uploadThreadCount,
+                          int queueCapacity) {
+        this.stages = stages;
+        hashQueue = new ArrayBlockingQueue<>(queueCapacity);
+        uploadQueue = new ArrayBlockingQueue<>(queueCapacity);
+        walkStats = new StageStats("walk", 1);
+        hashStats = new StageStats("hash", hashThreadCount);
+        uploadStats = new StageStats("upload", uploadThreadCount);
+
+        hashThreads = new Thread[hashThreadCount];
+        for (int i = 0; i < hashThreadCount; i++) {
+            hashThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    hashLoop();
+                }
+            }, "hash-" + i);
+        }
+        uploadThreads = new Thread[uploadThreadCount];
+        for (int i = 0; i < uploadThreadCount; i++) {
+            uploadThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    uploadLoop();
+                }
+            }, "upload-" + i);
+        }
+    }
+
+    /**
+     * Has listener called with a fresh checkpoint at most every intervalMillis, from
+     * whichever pipeline thread notices it is due. Call before {@link #start()}.
+     */
+    public void setCheckpointListener(CheckpointListener listener, long intervalMillis) {
+        checkpointListener = listener;
+        checkpointMillis = intervalMillis;
+        lastCheckpointMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts the cursor at where an earlier run stopped, so checkpoints taken before this run
+     * finishes anything don't lose that run's progress.
+     */
+    public void resumeFrom(Checkpoint checkpoint) {
+        synchronized (outstanding) {
+            cursorLine = checkpoint.line;
+            cursorPath = checkpoint.cursor;
+        }
+    }
+
+    public void start() {
+        long now = System.nanoTime();
+        walkStats.startNanos = hashStats.startNanos = uploadStats.startNanos = now;
+        for (Thread t : hashThreads) t.start();
+        for (Thread t : uploadThreads) t.start();
+    }
+
+    /**
+     * Walks file (a directory or a single file) on the calling thread, feeding the hash stage.
+     * Blocks whenever the hash stage falls behind. If resumeAfter is given, every file up to
+     * and including it in walk order is skipped, and directories entirely before it are not
+     * even listed. So are directories the line excludes. Returns the time the walk spent
+     * working, which leaves out its waits for the hash stage.
+     */
+    public long walk(File file, F parent, final BackupOptions options, File resumeAfter)
+            throws Exception {
+        DirectoryWalker<F> walker = new DirectoryWalker<F>(new DirectoryWalker.Visitor<F>() {
+            @Override
+            public F enterDirectory(File directory, F parent) throws Exception {
+                return stages.resolveFolder(directory, parent);
+            }
+
+            @Override
+            public void visitFile(File file, F parent) throws Exception {
+                walkStats.items.incrementAndGet();
+                walkStats.bytes.addAndGet(file.length());
+                Task<F> task = new Task<>(file, parent, options);
+                synchronized (outstanding) {
+                    outstanding.addLast(task);
+                }
+                put(hashQueue, task, walkStats);
+                maybeCheckpoint();
+            }
+        }) {
+            @Override
+            protected boolean shouldStop() {
+                return BackupPipeline.this.shouldStop();
+            }
+        };
+        walker.setFilter(options.filter);
+        walker.setResumeAfter(resumeAfter);
+
+        // Busy for as long as the walk took, less the time it waited for the hash stage
+        long start = System.nanoTime();
+        long blocked = walkStats.blockedNanos.get();
+        long busy = 0;
+        try {
+            walker.walk(file, parent);
+        } finally {
+            busy = System.nanoTime() - start - (walkStats.blockedNanos.get() - blocked);
+            walkStats.busyNanos.addAndGet(busy);
+        }
+        return busy;
+    }
+
+    /**
+     * Returns how far the pipeline has got. Files after the cursor that were walked but are
+     * not done yet are listed as in flight.
+     */
+    public Checkpoint getCheckpoint() {
+        synchronized (outstanding) {
+            List<String> inFlight = new ArrayList<>();
+            for (Task<F> task : outstanding) {
+                if (inFlight.size() == MAX_IN_FLIGHT) break;
+                if (!task.done) inFlight.add(task.file.getPath());
+            }
+            return new Checkpoint(cursorLine, cursorPath, inFlight);
+        }
+    }
+
+    /**
+     * Returns how many files this pipeline has found unchanged or uploaded.
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Returns how many walked files are not yet known to be done.
+     */
+    public int getOutstandingCount() {
+        synchronized (outstanding) {
+            return outstanding.size();
+        }
+    }
+
+    private void complete(Task<F> task) {
+        completed.incrementAndGet();
+        synchronized (outstanding) {
+            task.done = true;
+            while (!outstanding.isEmpty() && outstanding.peekFirst().done) {
+                Task<F> head = outstanding.pollFirst();
+                cursorLine = head.options.lineNumber;
+                cursorPath = head.file.getPath();
+            }
+        }
+        maybeCheckpoint();
+    }
+
+    private void maybeCheckpoint() {
+        if (checkpointListener == null) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastCheckpointMillis < checkpointMillis) {
+                return;
+            }
+            lastCheckpointMillis = now;
+        }
+        checkpointListener.onCheckpoint(getCheckpoint());
+    }
+
+    /**
+     * Signals the end of the walk and waits for both stages to drain.
+     */
+    public void finish() throws InterruptedException {
+        walkStats.endNanos = System.nanoTime();
+        for (int i = 0; i < hashThreads.length; i++) {
+            hashQueue.put(poison);
+        }
+        for (Thread t : hashThreads) t.join();
+        hashStats.endNanos = System.nanoTime();
+
+        for (int i = 0; i < uploadThreads.length; i++) {
+            uploadQueue.put(poison);
+        }
+        for (Thread t : uploadThreads) t.join();
+        uploadStats.endNanos = System.nanoTime();
+    }
+
+    /**
+     * Stops the walk and skips queued files. Files already being uploaded are finished.
+     */
+    public void cancel() {
+        isCanceled = true;
+    }
+
+    public boolean shouldStop() {
+        return isCanceled || error.get() != null;
+    }
+
+    /**
+     * Returns the first error raised by any stage, or null.
+     */
+    public Exception getError() {
+        return error.get();
+    }
+
+    public List<StageStats> getStats() {
+        return new ArrayList<>(Arrays.asList(walkStats, hashStats, uploadStats));
+    }
+
+    private void hashLoop() {
+        try {
+            Task<F> task;
+            while ((task = hashQueue.take()) != poison) {
+                if (shouldStop()) {
+                    continue; // Keep draining so the walker never blocks forever
+                }
+                long start = System.nanoTime();
+                boolean changed;
+                try {
+                    changed = stages.hasChanged(task.file, task.options);
+                    hashStats.items.incrementAndGet();
+                    hashStats.bytes.addAndGet(task.file.length());
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                    continue;
+                } finally {
+                    hashStats.busyNanos.addAndGet(System.nanoTime() - start);
+                }
+                if (changed) {
+                    put(uploadQueue, task, hashStats);
+                } else {
+                    complete(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            error.compareAndSet(null, e);
+        }
+    }
+
+    private void uploadLoop() {
+        try {
+            Task<F> task;
+            while ((task = uploadQueue.take()) != poison) {
+                if (shouldStop()) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    stages.upload(task.file, task.parent, task.options);
+                    uploadStats.items.incrementAndGet();
+                    uploadStats.bytes.addAndGet(task.file.length());
+                    complete(task);
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    uploadStats.busyNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            error.compareAndSet(null, e);
+        }
+    }
+
+    private void put(BlockingQueue<Task<F>> queue, Task<F> task, StageStats producer)
+            throws InterruptedException {
+        if (!queue.offer(task)) {
+            long start = System.nanoTime();
+            queue.put(task);
+            producer.blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+}
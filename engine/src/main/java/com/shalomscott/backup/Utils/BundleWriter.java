@@ -0,0 +1,269 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs small files into ZIP segments of roughly a target size, so that each segment, not
+ * each file, costs a round trip to Drive.
+ * <p>
+ * Files are copied into the open segment as they arrive. Each file is read before the writer
+ * is locked, so workers only queue behind each other to append an entry that is already in
+ * memory. Once the segment reaches the target size (or on {@link #flush()}) it is sealed and
+ * handed to the {@link SegmentUploader} by the thread that sealed it, while the others carry
+ * on into a new segment. Only once the upload succeeds is each member appended to the bundle
+ * index: a local log of {@code segment<TAB>offset<TAB>length<TAB>path} lines, where offset
+ * and length locate the member's entry within its segment. A path's last line is its current
+ * copy.
+ */
+public class BundleWriter {
+    // Name of the folder segments are uploaded to, under the app's root folder
+    public static final String FOLDER_NAME = "#bundles";
+
+    private static final String INDEX_NAME = "bundles";
+
+    /**
+     * Uploads a sealed segment. Once it returns, the members are considered backed up.
+     */
+    public interface SegmentUploader {
+        void uploadSegment(File segmentFile, String name, List<Member> members)
+                throws IOException;
+    }
+
+    /**
+     * A file packed into a segment, as it was when it was copied.
+     */
+    public static class Member {
+        public final File file;
+        public final String path;
+        // The 'backup' line the file was found through
+        public final int line;
+        public final long length;
+        public final long lastModified;
+        public final byte[] digest;
+        // Where the member's entry starts in the segment, and how many bytes it spans
+        public final long offset;
+        public final long size;
+
+        Member(File file, String path, int line, long length, long lastModified, byte[] digest,
+               long offset, long size) {
+            this.file = file;
+            this.path = path;
+            this.line = line;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    // A segment taken off the writer, to be uploaded by the thread that sealed it
+    private static class Sealed {
+        final int number;
+        final File file;
+        final String name;
+        final List<Member> members;
+
+        Sealed(int number, File file, String name, List<Member> members) {
+            this.number = number;
+            this.file = file;
+            this.name = name;
+            this.members = members;
+        }
+    }
+
+    private final File indexFile;
+    private final File cacheDir;
+    private final long targetSize;
+    private final SegmentUploader uploader;
+
+    // All below are guarded by this
+    // The open segment, or null until the next file arrives
+    private File segmentFile;
+    private CountingOutputStream segmentOut;
+    private ZipOutputStream zip;
+    private final List<Member> members = new ArrayList<>();
+    private int segmentCount = 0;
+    // Numbers of the sealed segments still being uploaded
+    private final SortedSet<Integer> uploading = new TreeSet<>();
+
+    public BundleWriter(File indexDir, File cacheDir, long targetSize, SegmentUploader uploader) {
+        indexFile = new File(indexDir, INDEX_NAME);
+        this.cacheDir = cacheDir;
+        this.targetSize = targetSize;
+        this.uploader = uploader;
+    }
+
+    /**
+     * Copies file into the open segment, sealing and uploading the segment if that brings it
+     * to the target size. length and lastModified must be read before the file is, and at
+     * most length bytes are copied.
+     */
+    public void add(File file, String path, int line, long length, long lastModified)
+            throws IOException, NoSuchAlgorithmException {
+        // Read while unlocked, so only appending the entry is done one worker at a time.
+        // Bundled files are small, so holding one in memory is cheap
+        byte[] contents = new byte[(int) Math.min(length, Integer.MAX_VALUE)];
+        int size = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (size < contents.length
+                    && (read = in.read(contents, size, contents.length - size)) != -1) {
+                size += read;
+            }
+        }
+        RunStats.current().count(RunStats.BYTES_READ, size);
+        MessageDigest digest = LocalFiles.newDigest();
+        digest.update(contents, 0, size);
+
+        Sealed sealed = null;
+        synchronized (this) {
+            if (zip == null) {
+                segmentFile = File.createTempFile("segment", ".zip", cacheDir);
+                segmentOut = new CountingOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(segmentFile)));
+                zip = new ZipOutputStream(segmentOut);
+            }
+
+            // The previous entry is closed, so everything before this one has been counted
+            long offset = segmentOut.count;
+            ZipEntry entry = new ZipEntry(path);
+            entry.setTime(lastModified);
+            zip.putNextEntry(entry);
+            try {
+                zip.write(contents, 0, size);
+            } finally {
+                // Even a failed copy leaves the archive well formed, with an unindexed entry
+                zip.closeEntry();
+            }
+
+            members.add(new Member(file, path, line, length, lastModified, digest.digest(),
+                    offset, segmentOut.count - offset));
+            if (segmentOut.count >= targetSize) {
+                sealed = seal();
+            }
+        }
+        if (sealed != null) {
+            upload(sealed);
+        }
+    }
+
+    /**
+     * Seals and uploads the open segment, if it holds anything, and waits for every segment
+     * sealed before it to be uploaded too. Once it returns, every file added before it was
+     * called is in the index, unless its segment failed to upload.
+     */
+    public void flush() throws IOException {
+        Sealed sealed;
+        int last;
+        synchronized (this) {
+            sealed = (zip != null) ? seal() : null;
+            last = segmentCount - 1;
+        }
+        if (sealed != null) {
+            upload(sealed);
+        }
+
+        synchronized (this) {
+            while (!uploading.isEmpty() && uploading.first() <= last) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a bundle upload");
+                }
+            }
+        }
+    }
+
+    // Takes the open segment off the writer, so the next file starts a new one. Only called
+    // holding the lock
+    private Sealed seal() throws IOException {
+        int number = segmentCount++;
+        Sealed sealed = new Sealed(number, segmentFile,
+                "bundle-" + System.currentTimeMillis() + "-" + number + ".zip",
+                Collections.unmodifiableList(new ArrayList<>(members)));
+        ZipOutputStream closing = zip;
+        zip = null;
+        segmentOut = null;
+        segmentFile = null;
+        members.clear();
+        try {
+            closing.close(); // Writes the archive's directory
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            sealed.file.delete();
+            throw e;
+        }
+        uploading.add(number);
+        return sealed;
+    }
+
+    private void upload(Sealed sealed) throws IOException {
+        try {
+            uploader.uploadSegment(sealed.file, sealed.name, sealed.members);
+            appendToIndex(sealed.name, sealed.members);
+        } finally {
+            // A failed segment's files aren't recorded anywhere, so the next run retries them
+            //noinspection ResultOfMethodCallIgnored
+            sealed.file.delete();
+            synchronized (this) {
+                uploading.remove(sealed.number);
+                notifyAll();
+            }
+        }
+    }
+
+    // Only called from upload, and serialized so segments' lines never interleave
+    private synchronized void appendToIndex(String segment, List<Member> sealed)
+            throws IOException {
+        try (FileOutputStream out = new FileOutputStream(indexFile, true)) {
+            Writer writer = new OutputStreamWriter(new BufferedOutputStream(out), "UTF-8");
+            for (Member member : sealed) {
+                writer.write(segment + "\t" + member.offset + "\t" + member.size + "\t"
+                        + member.path + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
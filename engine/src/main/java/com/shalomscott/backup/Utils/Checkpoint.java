@@ -0,0 +1,126 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * How far an interrupted run got, so the next run can pick up where it stopped.
+ * <p>
+ * Every file up to and including {@link #cursor}, in walk order, on config line {@link #line}
+ * and every line before it has been handled. {@link #inFlight} lists the files after the
+ * cursor that were being worked on when the checkpoint was taken.
+ */
+public class Checkpoint {
+    private static final String KEY_STAMP = "config";
+    private static final String KEY_LINE = "line";
+    private static final String KEY_CURSOR = "cursor";
+    private static final String KEY_IN_FLIGHT = "inflight.";
+    private static final String KEY_STALLS = "stalls";
+
+    // The config line being walked (1 based), or 0 if nothing has been handled yet
+    public final int line;
+    // Absolute path of the last handled file, or null
+    public final String cursor;
+    public final List<String> inFlight;
+    // Stopped runs in a row that finished no files, used to back off rescheduling
+    public final int stalls;
+
+    public Checkpoint(int line, String cursor, List<String> inFlight) {
+        this(line, cursor, inFlight, 0);
+    }
+
+    public Checkpoint(int line, String cursor, List<String> inFlight, int stalls) {
+        this.line = line;
+        this.cursor = cursor;
+        this.inFlight = Collections.unmodifiableList(new ArrayList<>(inFlight));
+        this.stalls = stalls;
+    }
+
+    public Checkpoint withStalls(int stalls) {
+        return new Checkpoint(line, cursor, inFlight, stalls);
+    }
+
+    /**
+     * A stamp of the 'backup' config file. A checkpoint taken under a different stamp is
+     * ignored, since its line numbers may no longer mean the same thing.
+     */
+    public static String stampOf(File configFile) {
+        return configFile.length() + ":" + configFile.lastModified();
+    }
+
+    /**
+     * Returns the checkpoint stored in file, or null if there is none for this stamp.
+     */
+    public static Checkpoint load(File file, String stamp) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            properties.load(in);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!stamp.equals(properties.getProperty(KEY_STAMP))) {
+            return null;
+        }
+
+        int line;
+        int stalls;
+        try {
+            line = Integer.parseInt(properties.getProperty(KEY_LINE, "0"));
+            stalls = Integer.parseInt(properties.getProperty(KEY_STALLS, "0"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        List<String> inFlight = new ArrayList<>();
+        String path;
+        for (int i = 0; (path = properties.getProperty(KEY_IN_FLIGHT + i)) != null; i++) {
+            inFlight.add(path);
+        }
+        return new Checkpoint(line, properties.getProperty(KEY_CURSOR), inFlight, stalls);
+    }
+
+    /**
+     * Atomically replaces whatever checkpoint file held.
+     */
+    public void save(File file, String stamp) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_STAMP, stamp);
+        properties.setProperty(KEY_LINE, Integer.toString(line));
+        properties.setProperty(KEY_STALLS, Integer.toString(stalls));
+        if (cursor != null) {
+            properties.setProperty(KEY_CURSOR, cursor);
+        }
+        for (int i = 0; i < inFlight.size(); i++) {
+            properties.setProperty(KEY_IN_FLIGHT + i, inFlight.get(i));
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            BufferedOutputStream buf = new BufferedOutputStream(out);
+            properties.store(buf, null);
+            buf.flush();
+            out.getFD().sync();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new FileNotFoundException("Could not replace " + file.getPath());
+        }
+    }
+
+    public static void clear(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
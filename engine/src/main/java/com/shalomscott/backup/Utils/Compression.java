@@ -0,0 +1,112 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides which files are worth compressing on their way to Drive, and compresses them as a
+ * stream, so no file is ever held in memory.
+ * <p>
+ * Files whose type is already compressed (most media and archives) go up raw. For the rest,
+ * the first block is deflated as a sample, and the file is compressed only if the sample
+ * shrank by enough. A compressed file is stored gzipped, under its name plus {@link #SUFFIX}.
+ */
+public class Compression {
+    public static final String SUFFIX = ".gz";
+
+    // Bytes from the start of a file that are deflated to judge the rest of it
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Compressed formats that don't have a type prefix of their own
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip",
+            "application/gzip",
+            "application/x-gzip",
+            "application/x-bzip2",
+            "application/x-xz",
+            "application/x-7z-compressed",
+            "application/x-rar-compressed",
+            "application/vnd.android.package-archive",
+            "application/java-archive",
+            "application/epub+zip",
+            "application/pdf",
+            "application/ogg"
+    ));
+
+    // Uncompressed formats under an otherwise compressed type prefix
+    private static final Set<String> RAW_MEDIA_TYPES = new HashSet<>(Arrays.asList(
+            "image/bmp",
+            "image/x-ms-bmp",
+            "image/svg+xml",
+            "audio/wav",
+            "audio/x-wav"
+    ));
+
+    /**
+     * Returns false for types that are known to be compressed already. A null (unknown) type
+     * may still be compressible.
+     */
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null || RAW_MEDIA_TYPES.contains(mimeType)) {
+            return true;
+        }
+        if (mimeType.startsWith("image/") || mimeType.startsWith("video/")
+                || mimeType.startsWith("audio/")) {
+            return false;
+        }
+        // Office Open XML and OpenDocument files are ZIP archives
+        return !COMPRESSED_TYPES.contains(mimeType)
+                && !mimeType.startsWith("application/vnd.openxmlformats-officedocument.")
+                && !mimeType.startsWith("application/vnd.oasis.opendocument.");
+    }
+
+    /**
+     * Deflates the first block of file and returns whether it shrank by at least
+     * minSavingPercent.
+     */
+    public static boolean sampleCompresses(File file, int minSavingPercent) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < sample.length
+                    && (read = in.read(sample, length, sample.length - length)) != -1) {
+                length += read;
+            }
+        }
+        if (length == 0) {
+            return false;
+        }
+
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return compressed * 100 <= (long) length * (100 - minSavingPercent);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Wraps out in a stream that gzips whatever is written to it. Closing the returned stream
+     * finishes the gzip stream and closes out.
+     */
+    public static OutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,431 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style deltas for large files that change in place.
+ * <p>
+ * A {@link Signature} holds a weak rolling checksum and an MD5 for each fixed-size block of
+ * the last uploaded version of a file. The next version is scanned against it with a rolling
+ * window, and written as a delta: runs of blocks to copy from the previous version, and the
+ * literal bytes that match nothing. Each delta is relative to the version before it, so a file
+ * is restored by taking its last full upload and applying its deltas in order with
+ * {@link #applyDelta}. Chains are kept short by re-uploading the whole file every so often.
+ */
+public class DeltaSync {
+    private static final int SIGNATURE_MAGIC = 0x44534947; // "DSIG"
+    private static final int DELTA_MAGIC = 0x44454c54; // "DELT"
+    private static final int VERSION = 1;
+    private static final int DIGEST_SIZE = 16; // MD5 digest is 16B
+
+    private static final String DELTA_SUFFIX = ".delta-";
+
+    private static final byte OP_COPY = 'C';
+    private static final byte OP_DATA = 'D';
+    private static final byte OP_END = 'E';
+
+    private static final int MIN_BLOCK_SIZE = 4 * 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+    // Longest literal run held in memory before it is written out
+    private static final int LITERAL_CHUNK = 64 * 1024;
+
+    /**
+     * The name of the n-th delta (1 based) uploaded for the file called name since its last
+     * full upload. Deltas sit next to the full upload, in the same folder.
+     */
+    public static String deltaName(String name, int n) {
+        return name + DELTA_SUFFIX + n;
+    }
+
+    /**
+     * Picks a block size that grows with the square root of the file's length, trading the
+     * signature's size against how finely changes are located.
+     */
+    public static int chooseBlockSize(long length) {
+        int size = MIN_BLOCK_SIZE;
+        while (size < MAX_BLOCK_SIZE && (long) size * size < length) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * The block checksums of one version of a file.
+     */
+    public static class Signature {
+        public final long length;
+        public final int blockSize;
+        // Number of deltas uploaded since the last full upload
+        public final int chain;
+        final int[] weak;
+        final byte[][] strong;
+
+        Signature(long length, int blockSize, int chain, int[] weak, byte[][] strong) {
+            this.length = length;
+            this.blockSize = blockSize;
+            this.chain = chain;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        public static Signature load(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != SIGNATURE_MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unknown signature format in " + file.getName());
+                }
+                long length = in.readLong();
+                int blockSize = in.readInt();
+                int chain = in.readInt();
+                int count = in.readInt();
+                int[] weak = new int[count];
+                byte[][] strong = new byte[count][DIGEST_SIZE];
+                for (int i = 0; i < count; i++) {
+                    weak[i] = in.readInt();
+                    in.readFully(strong[i]);
+                }
+                return new Signature(length, blockSize, chain, weak, strong);
+            } catch (EOFException e) {
+                throw new IOException("Truncated signature " + file.getName());
+            }
+        }
+
+        public void save(File file) throws IOException {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(SIGNATURE_MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(length);
+                out.writeInt(blockSize);
+                out.writeInt(chain);
+                out.writeInt(weak.length);
+                for (int i = 0; i < weak.length; i++) {
+                    out.writeInt(weak[i]);
+                    out.write(strong[i]);
+                }
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new FileNotFoundException("Could not replace " + file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Builds a {@link Signature} from a file's bytes as they stream past, in order.
+     */
+    public static class SignatureBuilder {
+        private final int blockSize;
+        private final MessageDigest md5;
+        private final List<Integer> weak = new ArrayList<>();
+        private final List<byte[]> strong = new ArrayList<>();
+        private long length;
+        private int offset; // Position within the current block
+        private int a, b;
+
+        public SignatureBuilder(int blockSize) throws NoSuchAlgorithmException {
+            this.blockSize = blockSize;
+            md5 = MessageDigest.getInstance("MD5");
+        }
+
+        public void update(byte[] bytes, int off, int len) {
+            // Start of the current block's bytes within this call
+            int blockStart = off;
+            for (int i = off; i < off + len; i++) {
+                int x = bytes[i] & 0xff;
+                a = (a + x) & 0xffff;
+                b = (b + (blockSize - offset) * x) & 0xffff;
+                if (++offset == blockSize) {
+                    md5.update(bytes, blockStart, i + 1 - blockStart);
+                    endBlock();
+                    blockStart = i + 1;
+                }
+            }
+            md5.update(bytes, blockStart, off + len - blockStart);
+            length += len;
+        }
+
+        public Signature finish(int chain) {
+            if (offset > 0) {
+                endBlock();
+            }
+            int[] weakArray = new int[weak.size()];
+            for (int i = 0; i < weakArray.length; i++) {
+                weakArray[i] = weak.get(i);
+            }
+            return new Signature(length, blockSize, chain, weakArray,
+                    strong.toArray(new byte[strong.size()][]));
+        }
+
+        private void endBlock() {
+            weak.add((b << 16) | a);
+            strong.add(md5.digest());
+            a = b = offset = 0;
+        }
+    }
+
+    /**
+     * Scans in against base, writing the delta that turns base's version into this one.
+     * Every byte read is also fed to next and digest. Gives up and returns false as soon as
+     * the literal bytes pass maxLiteral, when a full upload would be about as cheap.
+     */
+    public static boolean writeDelta(InputStream in, Signature base, OutputStream deltaOut,
+                                     SignatureBuilder next, MessageDigest digest,
+                                     long maxLiteral) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(deltaOut));
+        out.writeInt(DELTA_MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(base.blockSize);
+        out.writeLong(base.length);
+        boolean complete = new DeltaWriter(in, base, out, next, digest, maxLiteral).run();
+        if (complete) {
+            out.writeByte(OP_END);
+        }
+        out.flush();
+        return complete;
+    }
+
+    /**
+     * Rebuilds a version of a file from the version before it and the delta between them.
+     */
+    public static void applyDelta(RandomAccessFile base, InputStream delta, OutputStream out)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta));
+        if (in.readInt() != DELTA_MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unknown delta format");
+        }
+        int blockSize = in.readInt();
+        long baseLength = in.readLong();
+        if (base.length() != baseLength) {
+            throw new IOException("Delta does not apply to a base of " + base.length() + "B");
+        }
+
+        byte[] buffer = new byte[LITERAL_CHUNK];
+        while (true) {
+            byte op = in.readByte();
+            if (op == OP_END) {
+                return;
+            }
+            long remaining;
+            if (op == OP_COPY) {
+                long offset = (long) in.readInt() * blockSize;
+                remaining = Math.min((long) in.readInt() * blockSize, baseLength - offset);
+                base.seek(offset);
+                while (remaining > 0) {
+                    int read = base.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new EOFException("Base ended inside a copied block");
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            } else if (op == OP_DATA) {
+                remaining = in.readInt();
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new EOFException("Delta ended inside literal data");
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            } else {
+                throw new IOException("Unknown delta op " + op);
+            }
+        }
+    }
+
+    // The rolling scan. Holds the window plus the pending literal run in one buffer, so
+    // memory stays bounded however large the file is
+    private static class DeltaWriter {
+        private final InputStream in;
+        private final Signature base;
+        private final DataOutputStream out;
+        private final SignatureBuilder next;
+        private final MessageDigest digest;
+        private final long maxLiteral;
+        private final int bs;
+        private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        private final MessageDigest blockDigest;
+
+        private final byte[] buf;
+        private int start; // Start of the pending literal run
+        private int pos; // Start of the window
+        private int end; // End of the bytes read so far
+        private boolean eof = false;
+        private long literalBytes;
+
+        // Consecutive copied blocks not yet written out
+        private int copyStart = -1;
+        private int copyCount;
+
+        DeltaWriter(InputStream in, Signature base, DataOutputStream out, SignatureBuilder next,
+                    MessageDigest digest, long maxLiteral) throws IOException {
+            this.in = in;
+            this.base = base;
+            this.out = out;
+            this.next = next;
+            this.digest = digest;
+            this.maxLiteral = maxLiteral;
+            bs = base.blockSize;
+            buf = new byte[LITERAL_CHUNK + 2 * bs];
+            try {
+                blockDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Could not get MD5 algorithm");
+            }
+
+            // Only whole blocks can match the window
+            long wholeBlocks = base.length / bs;
+            for (int i = 0; i < wholeBlocks; i++) {
+                List<Integer> blocks = blocksByWeak.get(base.weak[i]);
+                if (blocks == null) {
+                    blocks = new ArrayList<>(1);
+                    blocksByWeak.put(base.weak[i], blocks);
+                }
+                blocks.add(i);
+            }
+        }
+
+        boolean run() throws IOException {
+            boolean haveSum = false;
+            int a = 0, b = 0;
+            while (true) {
+                if (end - pos < bs + 1 && !eof) {
+                    fill();
+                    continue;
+                }
+                if (end - pos < bs) {
+                    break; // Too little left to fill a window
+                }
+
+                if (!haveSum) {
+                    a = b = 0;
+                    for (int i = 0; i < bs; i++) {
+                        int x = buf[pos + i] & 0xff;
+                        a = (a + x) & 0xffff;
+                        b = (b + (bs - i) * x) & 0xffff;
+                    }
+                    haveSum = true;
+                }
+
+                int match = findBlock((b << 16) | a);
+                if (match >= 0) {
+                    flushLiteral(pos);
+                    copy(match);
+                    pos += bs;
+                    start = pos;
+                    haveSum = false;
+                    continue;
+                }
+
+                if (end - pos < bs + 1) {
+                    break; // At the end of the file, nothing left to roll in
+                }
+                int x = buf[pos] & 0xff;
+                int y = buf[pos + bs] & 0xff;
+                a = (a - x + y) & 0xffff;
+                b = (b - bs * x + a) & 0xffff;
+                pos++;
+
+                if (pos - start >= LITERAL_CHUNK) {
+                    flushLiteral(pos);
+                }
+                if (literalBytes + (pos - start) > maxLiteral) {
+                    return false;
+                }
+            }
+
+            pos = end;
+            flushLiteral(end);
+            flushCopy();
+            return literalBytes <= maxLiteral;
+        }
+
+        private int findBlock(int weak) {
+            List<Integer> candidates = blocksByWeak.get(weak);
+            if (candidates == null) {
+                return -1;
+            }
+            blockDigest.update(buf, pos, bs);
+            byte[] strong = blockDigest.digest();
+            for (int block : candidates) {
+                if (Arrays.equals(strong, base.strong[block])) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        private void fill() throws IOException {
+            if (buf.length - end < bs) {
+                // Slide the pending literal run and the window back to the front
+                System.arraycopy(buf, start, buf, 0, end - start);
+                pos -= start;
+                end -= start;
+                start = 0;
+            }
+            int read = in.read(buf, end, buf.length - end);
+            if (read == -1) {
+                eof = true;
+                return;
+            }
+            next.update(buf, end, read);
+            digest.update(buf, end, read);
+            RunStats.current().count(RunStats.BYTES_READ, read);
+            end += read;
+        }
+
+        private void copy(int block) throws IOException {
+            if (copyStart >= 0 && block == copyStart + copyCount) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyStart = block;
+            copyCount = 1;
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyStart >= 0) {
+                out.writeByte(OP_COPY);
+                out.writeInt(copyStart);
+                out.writeInt(copyCount);
+                copyStart = -1;
+            }
+        }
+
+        private void flushLiteral(int upTo) throws IOException {
+            int len = upTo - start;
+            if (len <= 0) {
+                return;
+            }
+            flushCopy();
+            out.writeByte(OP_DATA);
+            out.writeInt(len);
+            out.write(buf, start, len);
+            literalBytes += len;
+            start = upTo;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a tree in a stable order: each directory before its children, and the children of a
+ * directory by name. The same tree is always walked in the same order, so a position in the
+ * walk is just a path (see {@link Checkpoint}).
+ * <p>
+ * The walk keeps an explicit stack of the directories being listed instead of recursing, so
+ * however deep the tree it needs no more stack, and can stop between any two entries. Only
+ * names are listed, and each child's File is made when it is reached. A directory the
+ * {@link Filter} rejects is never listed, and neither is one entirely before the point a walk
+ * resumes after.
+ *
+ * @param <T> what the visitor makes of each directory, handed to its children
+ */
+public class DirectoryWalker<T> {
+
+    public interface Visitor<T> {
+        /**
+         * Called on each directory before it is listed. Returns what its children are visited
+         * with.
+         */
+        T enterDirectory(File directory, T parent) throws Exception;
+
+        void visitFile(File file, T parent) throws Exception;
+    }
+
+    /**
+     * Decides which entries are walked, from their path relative to the walk's root, with '/'
+     * separators.
+     */
+    public interface Filter {
+        boolean accept(String relativePath, boolean isDirectory);
+    }
+
+    // A directory being walked: its sorted names, and the next one to visit
+    private static class Frame<T> {
+        final File directory;
+        final T state;
+        final String[] names;
+        // Path from the walk's root, ending with '/', or null when there is no filter
+        final String prefix;
+        int next;
+        // Depth of the resume path's segment the child at next is on, or -1 if it isn't
+        int resumeDepth = -1;
+
+        Frame(File directory, T state, String[] names, String prefix) {
+            this.directory = directory;
+            this.state = state;
+            this.names = names;
+            this.prefix = prefix;
+        }
+    }
+
+    private final Visitor<T> visitor;
+    private Filter filter;
+    private File resumeAfter;
+    private volatile boolean stopped = false;
+
+    public DirectoryWalker(Visitor<T> visitor) {
+        this.visitor = visitor;
+    }
+
+    /**
+     * Walks only the entries filter accepts. null walks everything.
+     */
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Skips every entry up to and including resumeAfter in walk order, as a walk that had
+     * already got that far would have handled them. null walks everything.
+     */
+    public void setResumeAfter(File resumeAfter) {
+        this.resumeAfter = resumeAfter;
+    }
+
+    /**
+     * Stops the walk before its next entry. May be called from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    protected boolean shouldStop() {
+        return stopped;
+    }
+
+    /**
+     * Walks root, a directory or a single file, calling the visitor for it and everything
+     * under it.
+     */
+    public void walk(File root, T parent) throws Exception {
+        if (shouldStop()) {
+            return;
+        }
+
+        // Path segments of resumeAfter below root, or null if the whole of root is walked
+        String[] resumePath = null;
+        if (resumeAfter != null) {
+            if (resumeAfter.equals(root)) {
+                return; // Handled by an earlier walk
+            } else if (isAncestor(root, resumeAfter)) {
+                resumePath = resumeAfter.getPath().substring(root.getPath().length() + 1)
+                        .split(Pattern.quote(File.separator));
+            } else if (compareWalkOrder(root, resumeAfter) < 0) {
+                return; // The whole tree was handled by an earlier walk
+            }
+        }
+
+        if (!root.isDirectory()) {
+            if (!root.isFile()) {
+                throw new FileNotFoundException(root.getName() + " does not exists");
+            }
+            visitor.visitFile(root, parent);
+            return;
+        }
+
+        ArrayDeque<Frame<T>> stack = new ArrayDeque<>();
+        Frame<T> top = enter(root, parent, (filter != null) ? "" : null);
+        if (top == null) {
+            return;
+        }
+        if (resumePath != null) {
+            skipTo(top, resumePath, 0);
+        }
+        stack.push(top);
+
+        while (!stack.isEmpty() && !shouldStop()) {
+            Frame<T> frame = stack.peek();
+            if (frame.next == frame.names.length) {
+                stack.pop();
+                continue;
+            }
+
+            int resumeDepth = frame.resumeDepth;
+            frame.resumeDepth = -1;
+            String name = frame.names[frame.next++];
+            File file = new File(frame.directory, name);
+            String relativePath = (frame.prefix != null) ? frame.prefix + name : null;
+
+            if (file.isDirectory()) {
+                if (filter != null && !filter.accept(relativePath, true)) {
+                    continue;
+                }
+                Frame<T> child = enter(file, frame.state,
+                        (relativePath != null) ? relativePath + "/" : null);
+                if (child == null) {
+                    continue;
+                }
+                if (resumeDepth >= 0) {
+                    skipTo(child, resumePath, resumeDepth + 1);
+                }
+                stack.push(child);
+            } else if (file.isFile()) {
+                if (filter == null || filter.accept(relativePath, false)) {
+                    visitor.visitFile(file, frame.state);
+                }
+            } else {
+                throw new FileNotFoundException(file.getName() + " does not exists");
+            }
+        }
+    }
+
+    // Visits directory and lists it, returning null if it can't be listed
+    private Frame<T> enter(File directory, T parent, String prefix) throws Exception {
+        T state = visitor.enterDirectory(directory, parent);
+        String[] names = directory.list();
+        if (names == null) {
+            return null;
+        }
+        Arrays.sort(names);
+        return new Frame<>(directory, state, names, prefix);
+    }
+
+    // Moves frame past every child before resumePath[depth], and past that child too if it is
+    // where the walk resumes after. If it is a directory on the way there, marks it
+    private static void skipTo(Frame<?> frame, String[] resumePath, int depth) {
+        if (depth >= resumePath.length) {
+            return;
+        }
+        int index = Arrays.binarySearch(frame.names, resumePath[depth]);
+        if (index < 0) {
+            frame.next = -index - 1; // Gone since, so the walk resumes with whatever follows
+        } else if (depth == resumePath.length - 1) {
+            frame.next = index + 1;
+        } else {
+            frame.next = index;
+            frame.resumeDepth = depth;
+        }
+    }
+
+    // Orders two paths as the walk visits them: parents first, then children by name
+    private static int compareWalkOrder(File a, File b) {
+        String[] as = a.getPath().split(Pattern.quote(File.separator));
+        String[] bs = b.getPath().split(Pattern.quote(File.separator));
+        for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+            int c = as[i].compareTo(bs[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return as.length - bs.length;
+    }
+
+    private static boolean isAncestor(File directory, File file) {
+        return file.getPath().startsWith(directory.getPath() + File.separator);
+    }
+
+    /**
+     * Returns a filter that leaves out every path matching one of globs, or null if there are
+     * none. A glob with no '/' matches a name at any depth; one with a '/' matches from the
+     * walk's root. '*' matches within a name, '**' across names, and '?' one character.
+     */
+    public static Filter excluding(String[] globs) {
+        if (globs == null || globs.length == 0) {
+            return null;
+        }
+        final List<Pattern> patterns = new ArrayList<>();
+        for (String glob : globs) {
+            patterns.add(toPattern(glob));
+        }
+        return new Filter() {
+            @Override
+            public boolean accept(String relativePath, boolean isDirectory) {
+                for (Pattern pattern : patterns) {
+                    if (pattern.matcher(relativePath).matches()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    private static Pattern toPattern(String glob) {
+        // A trailing '/' only says the glob is meant for a directory
+        if (glob.length() > 1 && glob.endsWith("/")) {
+            glob = glob.substring(0, glob.length() - 1);
+        }
+        StringBuilder regex = new StringBuilder();
+        if (glob.indexOf('/') < 0) {
+            regex.append("(?:.*/)?");
+        } else if (glob.startsWith("/")) {
+            glob = glob.substring(1);
+        }
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (Character.isLetterOrDigit(c)) {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
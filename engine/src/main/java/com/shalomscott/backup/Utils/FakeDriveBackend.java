@@ -0,0 +1,296 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory stand-in for Google Drive, with the latency and faults of a real connection
+ * injected on request, so the engine's throughput can be measured off-device.
+ * <p>
+ * Every call waits a round trip of the configured latency plus up to the configured jitter,
+ * and then fails at the configured rate. Uploads also stream at no more than the configured
+ * bandwidth each, and those beyond the configured number in flight are rejected, the way
+ * Drive rejects a client that sends too many requests at once. Only the names and lengths
+ * of uploaded files are kept. All settings default to a perfect, instant connection.
+ * <p>
+ * Each call is timed in the current {@link RunStats} as a Drive call, and each upload as the
+ * uploadFile phase, the same as on the real Drive, so runs against the fake report alike.
+ * <p>
+ * Folders can also be looked up without blocking. Such a lookup is answered from the fake's
+ * own {@link AsyncCalls} executor once its round trip is over, and fails if that takes longer
+ * than the call timeout. Call {@link #shutdown()} once done with the fake.
+ */
+public class FakeDriveBackend implements AsyncStorageBackend<FakeDriveBackend.Folder> {
+
+    /**
+     * A folder on the fake Drive.
+     */
+    public static class Folder {
+        public final String name;
+        private final Map<String, Folder> folders = new HashMap<>();
+        // Stored length of each file, by name
+        private final Map<String, Long> files = new HashMap<>();
+
+        Folder(String name) {
+            this.name = name;
+        }
+
+        public synchronized Folder getFolder(String name) {
+            return folders.get(name);
+        }
+
+        synchronized Folder getOrCreateFolder(String name) {
+            Folder folder = folders.get(name);
+            if (folder == null) {
+                folder = new Folder(name);
+                folders.put(name, folder);
+            }
+            return folder;
+        }
+
+        /**
+         * Returns the stored length of the file called name, or -1 if there is none.
+         */
+        public synchronized long getFile(String name) {
+            Long length = files.get(name);
+            return (length != null) ? length : -1;
+        }
+
+        synchronized void putFile(String name, long length) {
+            files.put(name, length);
+        }
+    }
+
+    private final Folder root = new Folder("Android Backup");
+    private final Random random;
+
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile double failureRate = 0;
+    private volatile int maxConcurrentUploads = 0;
+    private volatile long callTimeoutMillis = Settings.DEFAULT_CALL_TIMEOUT_SECONDS * 1000;
+
+    // Answers the lookups made without blocking
+    private final AsyncCalls async = new AsyncCalls("fake-drive", 2);
+
+    private final AtomicInteger uploadsInFlight = new AtomicInteger();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+
+    /**
+     * @param seed seeds the jitter and the injected failures
+     */
+    public FakeDriveBackend(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Sets each call's round trip, to which up to jitterMillis more is added at random.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = Math.max(0, latencyMillis);
+        this.jitterMillis = Math.max(0, jitterMillis);
+    }
+
+    /**
+     * Sets the rate each upload streams at. 0 means unlimited.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Sets the fraction of calls, from 0 to 1, that fail.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = Math.min(1, Math.max(0, failureRate));
+    }
+
+    /**
+     * Sets how many uploads may be in flight before more are rejected. 0 means unlimited.
+     */
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = Math.max(0, maxConcurrentUploads);
+    }
+
+    /**
+     * Sets how long a lookup made without blocking may take before it fails.
+     */
+    public void setCallTimeout(long timeoutMillis) {
+        callTimeoutMillis = Math.max(1, timeoutMillis);
+    }
+
+    /**
+     * Stops the executor that answers lookups made without blocking.
+     */
+    public void shutdown() {
+        async.shutdown();
+    }
+
+    public Folder getRootFolder() {
+        return root;
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getUploadCount() {
+        return uploads.get();
+    }
+
+    public long getBytesStored() {
+        return bytesStored.get();
+    }
+
+    @Override
+    public Folder getRoot() throws IOException {
+        call("getRoot");
+        return root;
+    }
+
+    @Override
+    public Folder getFolder(File directory, Folder parent) throws IOException {
+        call("getFolder");
+        return ((parent != null) ? parent : root).getOrCreateFolder(directory.getName());
+    }
+
+    @Override
+    public void getFolderAsync(final File directory, final Folder parent,
+                               AsyncCalls.Callback<Folder> callback) {
+        final AsyncCalls.Callback<Folder> timed =
+                async.withTimeout("getFolder", callTimeoutMillis, callback);
+        final long start = System.nanoTime();
+        calls.incrementAndGet();
+        long delay = nextRoundTrip();
+        final boolean fail = nextFails();
+        // Answered once the round trip is over, without a thread waiting it out
+        async.getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    endCall("getFolder", start, fail);
+                } catch (IOException e) {
+                    timed.onFailure(e);
+                    return;
+                }
+                timed.onResult(((parent != null) ? parent : root)
+                        .getOrCreateFolder(directory.getName()));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void upload(File file, String name, Folder folder,
+                       LocalFiles.OnProgressListener listener, MessageDigest digest)
+            throws IOException {
+        long start = System.nanoTime();
+        int inFlight = uploadsInFlight.incrementAndGet();
+        try {
+            int max = maxConcurrentUploads;
+            if (max > 0 && inFlight > max) {
+                calls.incrementAndGet();
+                failures.incrementAndGet();
+                throw new IOException("Too many concurrent uploads (" + inFlight + ")");
+            }
+            call("upload");
+
+            long length = LocalFiles.copyFile(file, new ThrottledSink(bytesPerSecond), listener,
+                    digest);
+            folder.putFile(name, length);
+            uploads.incrementAndGet();
+            bytesStored.addAndGet(length);
+            RunStats.current().count(RunStats.BYTES_SENT, length);
+        } finally {
+            uploadsInFlight.decrementAndGet();
+            RunStats.current().phase(RunStats.PHASE_UPLOAD, start);
+        }
+    }
+
+    // Waits out a round trip, then fails at the configured rate
+    private void call(String name) throws IOException {
+        long start = System.nanoTime();
+        calls.incrementAndGet();
+        long delay = nextRoundTrip();
+        boolean fail = nextFails();
+        sleep(delay, 0);
+        endCall(name, start, fail);
+    }
+
+    // Picks the length of a call's round trip
+    private long nextRoundTrip() {
+        synchronized (random) {
+            long delay = latencyMillis;
+            if (jitterMillis > 0) {
+                delay += (long) (random.nextDouble() * jitterMillis);
+            }
+            return delay;
+        }
+    }
+
+    // Picks whether a call fails
+    private boolean nextFails() {
+        synchronized (random) {
+            return random.nextDouble() < failureRate;
+        }
+    }
+
+    // Times a call whose round trip is over, then fails it if it was picked to
+    private void endCall(String name, long start, boolean fail) throws IOException {
+        RunStats.current().driveCall(name, start);
+        if (fail) {
+            failures.incrementAndGet();
+            throw new IOException("Injected failure");
+        }
+    }
+
+    private static void sleep(long millis, int nanos) throws InterruptedIOException {
+        if (millis <= 0 && nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis, nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during a fake Drive call");
+        }
+    }
+
+    // Discards what is written to it, taking as long as sending it at the given rate would
+    private static class ThrottledSink extends OutputStream {
+        private final long bytesPerSecond;
+
+        ThrottledSink(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (bytesPerSecond > 0) {
+                long nanos = len * 1000000000L / bytesPerSecond;
+                sleep(nanos / 1000000, (int) (nanos % 1000000));
+            }
+        }
+    }
+}
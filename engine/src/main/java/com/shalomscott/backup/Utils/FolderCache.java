@@ -0,0 +1,95 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Properties;
+
+/**
+ * A persistent map from a local directory's relative path to the encoded id of the remote
+ * folder it is backed up into, so folders don't have to be looked up again on every run.
+ * <p>
+ * Entries are only hints: whoever reads one must check the folder still exists, and
+ * {@link #invalidate(String)} it otherwise.
+ */
+public class FolderCache {
+    // Key of the app's own root folder
+    public static final String ROOT_KEY = "";
+
+    private static final String CACHE_NAME = "folders";
+    private static final String CACHE_TMP_NAME = "folders.tmp";
+
+    private final File cacheFile;
+    private final File tmpFile;
+    private final Properties ids = new Properties();
+    private boolean dirty = false;
+
+    private FolderCache(File directory) {
+        cacheFile = new File(directory, CACHE_NAME);
+        tmpFile = new File(directory, CACHE_TMP_NAME);
+    }
+
+    public static FolderCache load(File directory) throws IOException {
+        FolderCache cache = new FolderCache(directory);
+        if (cache.cacheFile.isFile()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(cache.cacheFile))) {
+                cache.ids.load(in);
+            } catch (IllegalArgumentException e) {
+                // A damaged cache is simply rebuilt
+                cache.ids.clear();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the encoded folder id cached for path, or null.
+     */
+    public synchronized String get(String path) {
+        return ids.getProperty(path);
+    }
+
+    public synchronized void put(String path, String encodedId) {
+        if (!encodedId.equals(ids.put(path, encodedId))) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Drops path along with every path beneath it, whose folders went away with it.
+     */
+    public synchronized void invalidate(String path) {
+        String prefix = path + File.separator;
+        Iterator<Object> keys = ids.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (path.equals(ROOT_KEY) || key.equals(path) || key.startsWith(prefix)) {
+                keys.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the cache to disk if it changed since it was loaded.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+            ids.store(out, null);
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            throw new FileNotFoundException("Could not replace " + cacheFile.getPath());
+        }
+        dirty = false;
+    }
+}
@@ -0,0 +1,255 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent map from a file's relative path to the size, modification time and digest of
+ * its last backed up contents.
+ * <p>
+ * The index lives in a single append-only log. It is loaded into memory with one sequential
+ * read, so lookups never touch the filesystem. Updates are visible right away but reach the
+ * log in batches, every {@code batchFiles} updates or {@code batchMillis} milliseconds, with a
+ * single fsync per batch. A crash loses at most the last unwritten batch, and a batch cut off
+ * half way is dropped on the next load. Once superseded records outnumber the live ones the
+ * log is compacted by rewriting it from memory.
+ */
+public class HashIndex {
+    private static final String INDEX_NAME = "index";
+    private static final String INDEX_TMP_NAME = "index.tmp";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x48494458; // "HIDX"
+    private static final int VERSION = 2;
+    private static final int DIGEST_SIZE = 16; // MD5 digest is 16B
+    // A record's path length is stored in two bytes
+    private static final int MAX_PATH_BYTES = 0xFFFF;
+
+    // Compact only once the log holds this many records beyond the live entries
+    private static final int COMPACT_SLACK = 1024;
+
+    public static final int DEFAULT_BATCH_FILES = 100;
+    public static final long DEFAULT_BATCH_MILLIS = 10 * 1000;
+
+    private final File indexFile;
+    private final File tmpFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    // Number of records in the log file, including superseded ones
+    private int logRecords;
+    private FileOutputStream logFile;
+    private DataOutputStream log;
+
+    // Paths updated since the last batch was written
+    private final Set<String> pending = new LinkedHashSet<>();
+    private int batchFiles = DEFAULT_BATCH_FILES;
+    private long batchMillis = DEFAULT_BATCH_MILLIS;
+    private long lastFlushMillis = System.currentTimeMillis();
+
+    public static class Entry {
+        public final long length;
+        public final long lastModified;
+        public final byte[] digest;
+
+        public Entry(long length, long lastModified, byte[] digest) {
+            if (digest.length != DIGEST_SIZE) {
+                throw new IllegalArgumentException("Expected a " + DIGEST_SIZE + " byte digest");
+            }
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+        public boolean matches(File file) {
+            return length == file.length() && lastModified == file.lastModified();
+        }
+    }
+
+    private HashIndex(File directory) {
+        indexFile = new File(directory, INDEX_NAME);
+        tmpFile = new File(directory, INDEX_TMP_NAME);
+    }
+
+    /**
+     * Loads the index stored in the given directory, creating an empty one if none exists.
+     */
+    public static HashIndex load(File directory) throws IOException {
+        HashIndex index = new HashIndex(directory);
+        boolean intact = index.read();
+        if (!intact || index.needsCompaction()) {
+            index.compact();
+        }
+        return index;
+    }
+
+    /**
+     * Returns the entry recorded for path, or null if the path has never been backed up.
+     */
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns a copy of every entry, keyed by path.
+     */
+    public synchronized Map<String, Entry> snapshot() {
+        return new HashMap<>(entries);
+    }
+
+    /**
+     * Sets how many updates, or how much time, a batch may hold before it is written.
+     */
+    public synchronized void setBatch(int files, long millis) {
+        batchFiles = Math.max(1, files);
+        batchMillis = Math.max(0, millis);
+    }
+
+    /**
+     * Records a new entry for path. It is written to the log with the rest of its batch.
+     */
+    public synchronized void put(String path, Entry entry) throws IOException {
+        // Checked before anything is recorded, since the record couldn't be read back
+        if (path.getBytes(UTF_8).length > MAX_PATH_BYTES) {
+            throw new IOException("Path too long for the hash index: " + path);
+        }
+        entries.put(path, entry);
+        pending.add(path);
+        if (pending.size() >= batchFiles
+                || System.currentTimeMillis() - lastFlushMillis >= batchMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the pending batch to the log and syncs it to disk.
+     */
+    public synchronized void flush() throws IOException {
+        lastFlushMillis = System.currentTimeMillis();
+        if (pending.isEmpty()) {
+            return;
+        }
+        openLog();
+        for (String path : pending) {
+            writeRecord(log, path, entries.get(path));
+        }
+        log.flush();
+        logFile.getFD().sync();
+        logRecords += pending.size();
+        pending.clear();
+    }
+
+    /**
+     * Writes the pending batch and compacts the log if it has grown too large.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    private boolean needsCompaction() {
+        return logRecords > 2 * entries.size() + COMPACT_SLACK;
+    }
+
+    // Returns false if the log was damaged (eg. a record cut off by a crash) or is in an unknown
+    // format, and must be rewritten
+    private boolean read() throws IOException {
+        if (!indexFile.isFile()) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024))) {
+            if (in.readInt() != MAGIC) {
+                return false; // Unknown format, start over
+            }
+            if (in.readInt() != VERSION) {
+                return false;
+            }
+            while (true) {
+                int high = in.read();
+                if (high == -1) {
+                    return true; // Clean end of log
+                }
+                byte[] pathBytes = new byte[(high << 8) | in.readUnsignedByte()];
+                in.readFully(pathBytes);
+                String path = new String(pathBytes, UTF_8);
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                byte[] digest = new byte[DIGEST_SIZE];
+                in.readFully(digest);
+                entries.put(path, new Entry(length, lastModified, digest));
+                logRecords++;
+            }
+        } catch (EOFException e) {
+            return false; // Partial last record, keep what was read before it
+        }
+    }
+
+    private void openLog() throws IOException {
+        if (log == null) {
+            logFile = new FileOutputStream(indexFile, true);
+            log = new DataOutputStream(new BufferedOutputStream(logFile, 64 * 1024));
+        }
+    }
+
+    // Record layout: [path length: u16][path: UTF-8][length: i64][last modified: i64][digest]
+    private static void writeRecord(DataOutputStream out, String path, Entry entry)
+            throws IOException {
+        byte[] pathBytes = path.getBytes(UTF_8);
+        out.writeShort(pathBytes.length);
+        out.write(pathBytes);
+        out.writeLong(entry.length);
+        out.writeLong(entry.lastModified);
+        out.write(entry.digest);
+    }
+
+    // Rewrites the log so it holds exactly one record per live entry
+    private void compact() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+
+        FileOutputStream tmp = new FileOutputStream(tmpFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmp, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            // Make sure the new log is on disk before it replaces the old one
+            out.flush();
+            tmp.getFD().sync();
+        }
+
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new FileNotFoundException("Could not replace " + indexFile.getPath());
+        }
+        logRecords = entries.size();
+        pending.clear();
+    }
+}
@@ -0,0 +1,55 @@
+package com.shalomscott.backup.Utils;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.Parameter;
+import com.martiansoftware.jsap.ParseException;
+import com.martiansoftware.jsap.SimpleJSAP;
+import com.martiansoftware.jsap.StringParser;
+import com.martiansoftware.jsap.Switch;
+import com.martiansoftware.jsap.UnflaggedOption;
+import com.martiansoftware.jsap.stringparsers.StringStringParser;
+
+
+public class JsapParser {
+    private static JSAP jsapParser;
+
+    public static JSAP getInstance() throws JSAPException {
+        if (jsapParser != null) {
+            return jsapParser;
+        }
+
+        UnflaggedOption filepath = new UnflaggedOption("filepath", JSAP.STRING_PARSER, true,
+                "The relative path to the file/directory");
+//        FlaggedOption hash = new FlaggedOption("hash", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, 'h',
+//                "hash", "Hash of the file, used to detect file change");
+
+        Switch paranoid = new Switch("paranoid", 'p', "paranoid",
+                "Always hash files to detect changes, instead of trusting size and modification time");
+        Switch delta = new Switch("delta", 'd', "delta",
+                "Upload only the changed blocks of large files, re-uploading them whole now and then");
+        Switch dedup = new Switch("dedup", JSAP.NO_SHORTFLAG, "dedup",
+                "Upload each distinct file content once, however many paths share it (overrides --delta)");
+        Switch bundle = new Switch("bundle", 'b', "bundle",
+                "Pack small files into bundles, instead of uploading each one on its own");
+        Switch compress = new Switch("compress", 'z', "compress",
+                "Gzip files that compress well on their way up, skipping media and archives");
+        FlaggedOption exclude = new FlaggedOption("exclude", JSAP.STRING_PARSER, JSAP.NO_DEFAULT,
+                false, 'x', "exclude",
+                "Leave out paths matching this glob, from the line's directory (repeatable)");
+        exclude.setAllowMultipleDeclarations(true);
+
+        jsapParser = new JSAP();
+        jsapParser.registerParameter(filepath);
+//        jsapParser.registerParameter(hash);
+        jsapParser.registerParameter(paranoid);
+        jsapParser.registerParameter(delta);
+        jsapParser.registerParameter(dedup);
+        jsapParser.registerParameter(bundle);
+        jsapParser.registerParameter(compress);
+        jsapParser.registerParameter(exclude);
+
+        return jsapParser;
+    }
+}
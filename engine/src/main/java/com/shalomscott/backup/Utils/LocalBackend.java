@@ -0,0 +1,61 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Backs up into a directory on the local filesystem, mirroring the tree being backed up.
+ * <p>
+ * Each file is written to a temporary file next to its destination and renamed over it, so
+ * the destination only ever holds complete copies.
+ */
+public class LocalBackend implements StorageBackend<File> {
+    private final File destination;
+
+    public LocalBackend(File destination) {
+        this.destination = destination;
+    }
+
+    @Override
+    public File getRoot() throws IOException {
+        return makeDirectory(destination);
+    }
+
+    @Override
+    public File getFolder(File directory, File parent) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new FileNotFoundException(directory.getName() + " is not an existing directory");
+        }
+        return makeDirectory(new File((parent != null) ? parent : getRoot(), directory.getName()));
+    }
+
+    @Override
+    public void upload(File file, String name, File folder, LocalFiles.OnProgressListener listener,
+                       MessageDigest digest) throws IOException {
+        File target = new File(folder, name);
+        File tmpFile = new File(folder, name + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                LocalFiles.copyFile(file, out, listener, digest);
+            }
+            if (!tmpFile.renameTo(target)) {
+                throw new FileNotFoundException("Could not replace " + target.getPath());
+            }
+            RunStats.current().count(RunStats.BYTES_SENT, file.length());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+        }
+    }
+
+    private static File makeDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create " + directory.getPath());
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,174 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Reading, hashing and change detection for local files. Nothing here depends on Android, so
+ * the engine runs the same on a plain JVM.
+ */
+public class LocalFiles {
+
+    // Size of the buffer used when streaming a file's contents
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // One reusable copy buffer per thread, so streaming allocates nothing per file
+    private static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
+    public interface OnProgressListener {
+        void onProgress(long bytesTransferred, long totalBytes);
+    }
+
+    /**
+     * Returns file's path relative to root, which is how the app keys its state. A file
+     * outside root keeps its absolute path.
+     */
+    public static String getRelativePath(File root, File file) {
+        String rootPath = root.getAbsolutePath();
+        String path = file.getAbsolutePath();
+        if (path.startsWith(rootPath + File.separator)) {
+            return path.substring(rootPath.length() + 1);
+        }
+        return path;
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Streams the contents of src into dst through a fixed-size buffer, so memory use
+     * stays constant regardless of the file's size. dst is not closed. If digest is given it
+     * is fed the same bytes, so the file is hashed without being read a second time.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copyFile(File src, OutputStream dst, OnProgressListener listener,
+                                MessageDigest digest) throws IOException {
+        return copyFile(src, dst, listener, digest, null);
+    }
+
+    /**
+     * Like {@link #copyFile(File, OutputStream, OnProgressListener, MessageDigest)}, also
+     * feeding the bytes to signature if it is given.
+     */
+    public static long copyFile(File src, OutputStream dst, OnProgressListener listener,
+                                MessageDigest digest, DeltaSync.SignatureBuilder signature)
+            throws IOException {
+        long total = src.length();
+        long transferred = 0;
+        byte[] buffer = copyBuffer.get();
+
+        try (InputStream is = new FileInputStream(src)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                dst.write(buffer, 0, read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                if (signature != null) {
+                    signature.update(buffer, 0, read);
+                }
+                transferred += read;
+                RunStats.current().count(RunStats.BYTES_READ, read);
+                if (listener != null) {
+                    listener.onProgress(transferred, total);
+                }
+            }
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Checks file against its entry in the hash index, where it is kept under path. Nothing
+     * is recorded for a changed file: its new digest is computed while it uploads and
+     * committed only once the upload succeeds (see {@link #recordUpload}).
+     * <p>
+     * A new file or one whose size changed is reported without being read. Unless paranoid
+     * is set, a file whose size and modification time match the index is assumed unchanged.
+     * Otherwise the file is hashed, and if only its modification time moved the index is
+     * brought up to date.
+     */
+    public static boolean hasFileChanged(HashIndex index, String path, File file,
+                                         boolean paranoid)
+            throws NoSuchAlgorithmException, IOException {
+        HashIndex.Entry saved = index.get(path);
+
+        // Read the size and time before hashing, so a write during hashing is caught next run
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (saved == null || saved.length != length) {
+            return true;
+        }
+        if (!paranoid && saved.lastModified == lastModified) {
+            return false;
+        }
+
+        // Compare the saved hash to the new one
+        byte[] hashBytes = getFileDigest(file);
+        if (!Arrays.equals(saved.digest, hashBytes)) {
+            return true;
+        }
+
+        // Same contents with a new time (eg. a touched file), so just record the time
+        if (saved.lastModified != lastModified) {
+            putEntry(index, path, new HashIndex.Entry(length, lastModified, hashBytes));
+        }
+        return false;
+    }
+
+    /**
+     * Commits the state of the file kept under path once its upload has been confirmed.
+     * length and lastModified must be read before the upload started.
+     */
+    public static void recordUpload(HashIndex index, String path, long length,
+                                    long lastModified, byte[] digest) throws IOException {
+        putEntry(index, path, new HashIndex.Entry(length, lastModified, digest));
+    }
+
+    private static void putEntry(HashIndex index, String path, HashIndex.Entry entry)
+            throws IOException {
+        try {
+            index.put(path, entry);
+        } catch (IOException e) {
+            throw new IOException("Could not update the hash index for " + path, e);
+        }
+    }
+
+    public static MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("MD5");
+    }
+
+    public static byte[] getFileDigest(File file) throws NoSuchAlgorithmException, IOException {
+        MessageDigest digest = newDigest();
+
+        // Compute the file's current MD5 value
+        try (InputStream is = new FileInputStream(file)) {
+            byte[] buffer = copyBuffer.get();
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                RunStats.current().count(RunStats.BYTES_READ, read);
+            }
+            return digest.digest();
+        } catch (IOException e) {
+            throw new IOException("Could not open " + file.getName() + " for reading", e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Stages that resolve remote folders in the background instead of on the walk's thread.
+ * resolveFolder only starts a folder's lookup, chained after its parent's, and returns it as
+ * {@link Pending} at once, so the walk lists the next directory while the backend answers for
+ * this one. Hashing never needs a file's folder, and the upload stage waits for it before
+ * handing the file to the wrapped stages.
+ * <p>
+ * A failed lookup fails the upload of every file in the folder or under it. A directory under
+ * it that is walked once the failure is known fails the walk.
+ *
+ * @param <F> the backend's folder type
+ */
+public class PipelinedFolders<F> implements BackupPipeline.Stages<PipelinedFolders.Pending<F>> {
+
+    /**
+     * A folder being looked up. Lookups of its children wait for it, and so do uploads into it.
+     */
+    public static class Pending<F> implements AsyncCalls.Callback<F> {
+        private final File directory;
+        private final CountDownLatch done = new CountDownLatch(1);
+        // Set once, before done is counted down. Guarded by this
+        private F folder;
+        private IOException error;
+        // Told once the lookup ends. Guarded by this, and null from then on
+        private List<AsyncCalls.Callback<F>> waiters = new ArrayList<>();
+
+        Pending(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void onResult(F result) {
+            if (result == null) {
+                onFailure(null);
+                return;
+            }
+            finish(result, null);
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            String message = "Could not find or create a folder for " + directory.getName();
+            finish(null, (e != null) ? new IOException(message + ": " + e.getMessage(), e)
+                    : new IOException(message));
+        }
+
+        /**
+         * Waits for the lookup and returns the folder, or throws why it couldn't be resolved.
+         */
+        public F get() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the folder of "
+                        + directory.getName());
+            }
+            synchronized (this) {
+                if (error != null) {
+                    throw error;
+                }
+                return folder;
+            }
+        }
+
+        /**
+         * Returns why the lookup failed, or null if it succeeded or hasn't ended yet.
+         */
+        public synchronized IOException getError() {
+            return error;
+        }
+
+        // Tells callback how the lookup ended, now or once it has
+        private void whenDone(AsyncCalls.Callback<F> callback) {
+            synchronized (this) {
+                if (waiters != null) {
+                    waiters.add(callback);
+                    return;
+                }
+            }
+            tell(callback);
+        }
+
+        private void finish(F result, IOException failure) {
+            List<AsyncCalls.Callback<F>> toTell;
+            synchronized (this) {
+                if (waiters == null) {
+                    return; // Already ended
+                }
+                folder = result;
+                error = failure;
+                toTell = waiters;
+                waiters = null;
+            }
+            done.countDown();
+            for (AsyncCalls.Callback<F> callback : toTell) {
+                tell(callback);
+            }
+        }
+
+        private void tell(AsyncCalls.Callback<F> callback) {
+            F result;
+            IOException failure;
+            synchronized (this) {
+                result = folder;
+                failure = error;
+            }
+            if (failure != null) {
+                callback.onFailure(failure);
+            } else {
+                callback.onResult(result);
+            }
+        }
+    }
+
+    private final BackupPipeline.Stages<F> stages;
+    private final AsyncStorageBackend<F> backend;
+
+    /**
+     * @param stages  checks and uploads files once their folder is resolved
+     * @param backend looks the folders up
+     */
+    public PipelinedFolders(BackupPipeline.Stages<F> stages, AsyncStorageBackend<F> backend) {
+        this.stages = stages;
+        this.backend = backend;
+    }
+
+    @Override
+    public Pending<F> resolveFolder(final File directory, Pending<F> parent) throws IOException {
+        // Nothing under a folder that couldn't be resolved can be backed up
+        if (parent != null && parent.getError() != null) {
+            throw parent.getError();
+        }
+
+        final Pending<F> folder = new Pending<>(directory);
+        if (parent == null) {
+            lookUp(directory, null, folder);
+        } else {
+            parent.whenDone(new AsyncCalls.Callback<F>() {
+                @Override
+                public void onResult(F resolved) {
+                    lookUp(directory, resolved, folder);
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    folder.finish(null, e);
+                }
+            });
+        }
+        return folder;
+    }
+
+    @Override
+    public boolean hasChanged(File file, BackupOptions options) throws Exception {
+        return stages.hasChanged(file, options);
+    }
+
+    @Override
+    public void upload(File file, Pending<F> parent, BackupOptions options) throws Exception {
+        stages.upload(file, (parent != null) ? parent.get() : null, options);
+    }
+
+    // Sends the lookup of directory, timed from when it is sent, not from when it was walked
+    private void lookUp(File directory, F parent, final Pending<F> folder) {
+        final long start = System.nanoTime();
+        backend.getFolderAsync(directory, parent, new AsyncCalls.Callback<F>() {
+            @Override
+            public void onResult(F result) {
+                RunStats.current().phase(RunStats.PHASE_GET_FOLDER, start);
+                folder.onResult(result);
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                RunStats.current().phase(RunStats.PHASE_GET_FOLDER, start);
+                folder.onFailure(e);
+            }
+        });
+    }
+}
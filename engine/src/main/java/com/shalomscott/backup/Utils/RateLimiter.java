@@ -0,0 +1,97 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A token bucket that caps the rate bytes are sent at, shared by every concurrent upload.
+ * <p>
+ * The bucket fills at {@code rate} bytes per second up to {@code burst} bytes, and each write
+ * through a stream from {@link #wrap(OutputStream)} waits until the bucket can pay for it. The
+ * rate can be changed at any time, and waiting writers pick up the new rate right away. A rate
+ * of 0 means unlimited.
+ */
+public class RateLimiter {
+    // Largest write that is paid for in one go, so concurrent uploads take turns
+    private static final int MAX_CHUNK = 16 * 1024;
+
+    private long rate = 0;
+    private long burst = 1;
+    private double tokens = 0;
+    private long lastRefillNanos = System.nanoTime();
+
+    public synchronized void setRate(long bytesPerSecond, long burst) {
+        refill();
+        rate = Math.max(0, bytesPerSecond);
+        this.burst = Math.max(1, burst);
+        tokens = Math.min(tokens, this.burst);
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Blocks until bytes may be sent. A request larger than the burst waits for a full bucket
+     * and leaves it in debt, so later requests pay the difference.
+     */
+    public synchronized void acquire(int bytes) throws InterruptedIOException {
+        while (rate > 0) {
+            refill();
+            double needed = Math.min(bytes, burst);
+            if (tokens >= needed) {
+                tokens -= bytes;
+                return;
+            }
+
+            long waitNanos = (long) ((needed - tokens) * 1e9 / rate);
+            try {
+                wait(Math.max(1, waitNanos / 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for upload bandwidth");
+            }
+        }
+    }
+
+    /**
+     * Wraps out so that every byte written to it is paid for from this bucket.
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new ThrottledOutputStream(out);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * rate / 1e9);
+        }
+        lastRefillNanos = now;
+    }
+
+    private class ThrottledOutputStream extends FilterOutputStream {
+        ThrottledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, MAX_CHUNK);
+                acquire(chunk);
+                out.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+    }
+}
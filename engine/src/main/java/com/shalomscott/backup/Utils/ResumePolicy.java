@@ -0,0 +1,39 @@
+package com.shalomscott.backup.Utils;
+
+/**
+ * Decides how long to wait before resuming a run the system stopped part way through.
+ * <p>
+ * A run that was making progress is resumed soon, and sooner still when only a few files
+ * are left, so a long backup finishes over several short job windows. A run that made no
+ * progress at all backs off exponentially, since whatever stopped it is likely to again.
+ */
+public class ResumePolicy {
+    // Files left at which a run counts as nearly done
+    static final long NEARLY_DONE_FILES = 50;
+
+    static final long NEARLY_DONE_DELAY_MILLIS = 10 * 1000;
+    static final long PROGRESS_DELAY_MILLIS = 30 * 1000;
+    static final long MAX_DELAY_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * @param madeProgress   whether the stopped run finished any file
+     * @param stalls         how many runs in a row, this one included, made no progress
+     * @param walkFinished   whether the stopped run had walked every file
+     * @param remainingFiles files walked but not finished when the run stopped
+     */
+    public static long delayMillis(boolean madeProgress, int stalls, boolean walkFinished,
+                                   long remainingFiles) {
+        if (madeProgress) {
+            if (walkFinished && remainingFiles <= NEARLY_DONE_FILES) {
+                return NEARLY_DONE_DELAY_MILLIS;
+            }
+            return PROGRESS_DELAY_MILLIS;
+        }
+
+        long delay = PROGRESS_DELAY_MILLIS;
+        for (int i = 0; i < stalls && delay < MAX_DELAY_MILLIS; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, MAX_DELAY_MILLIS);
+    }
+}
@@ -0,0 +1,323 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, phase timers and Drive call latencies for one run, written out as a JSON report
+ * when the run ends.
+ * <p>
+ * The run in progress is reachable from anywhere through {@link #current()}, so the helpers
+ * doing the work can record what they do without it being passed through every call. All
+ * methods are thread safe.
+ */
+public class RunStats {
+    // Counters
+    public static final String FILES_SCANNED = "filesScanned";
+    public static final String FILES_SKIPPED = "filesSkipped";
+    public static final String FILES_UPLOADED = "filesUploaded";
+    public static final String FILES_FAILED = "filesFailed";
+    public static final String BYTES_READ = "bytesRead";
+    public static final String BYTES_SENT = "bytesSent";
+
+    // Phases
+    public static final String PHASE_RUN = "run";
+    public static final String PHASE_WALK = "walk";
+    public static final String PHASE_HAS_CHANGED = "hasFileChanged";
+    public static final String PHASE_GET_FOLDER = "getFolder";
+    public static final String PHASE_UPLOAD = "uploadFile";
+
+    // Latency histogram buckets: under 1ms, under 2ms, under 4ms, ... and the rest
+    private static final int BUCKETS = 18;
+
+    private static volatile RunStats current = new RunStats();
+
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<String, AtomicLong> counters = new TreeMap<>();
+    private final Map<String, Timer> phases = new TreeMap<>();
+    private final Map<String, Timer> driveCalls = new TreeMap<>();
+    private final Map<Integer, RootStats> roots = new TreeMap<>();
+
+    /**
+     * Totals for the files under one line of 'backup'.
+     */
+    public static class RootStats {
+        public final int line;
+        public final String path;
+        public final AtomicLong filesScanned = new AtomicLong();
+        public final AtomicLong filesUploaded = new AtomicLong();
+        public final AtomicLong bytesUploaded = new AtomicLong();
+        public final AtomicLong failures = new AtomicLong();
+        // Time spent walking, hashing and uploading the root's files, summed over all threads.
+        // Waits on a full queue are left out, so work overlapping in time isn't counted twice
+        public final AtomicLong busyNanos = new AtomicLong();
+
+        RootStats(int line, String path) {
+            this.line = line;
+            this.path = path;
+        }
+    }
+
+    private static class Timer {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        // Only kept for Drive calls
+        final AtomicLongArray histogram;
+
+        Timer(boolean withHistogram) {
+            histogram = withHistogram ? new AtomicLongArray(BUCKETS) : null;
+        }
+
+        void record(long elapsedNanos) {
+            count.incrementAndGet();
+            nanos.addAndGet(elapsedNanos);
+            if (histogram != null) {
+                long millis = elapsedNanos / 1000000;
+                int bucket = 0;
+                while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+                    bucket++;
+                }
+                histogram.incrementAndGet(bucket);
+            }
+        }
+    }
+
+    /**
+     * Starts recording a new run and returns its stats.
+     */
+    public static RunStats start() {
+        current = new RunStats();
+        return current;
+    }
+
+    public static RunStats current() {
+        return current;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getDurationMillis() {
+        return System.currentTimeMillis() - startMillis;
+    }
+
+    /**
+     * Returns the totals for the root on the given line of 'backup', creating them for path if
+     * this is the first time the line is seen.
+     */
+    public RootStats root(int line, String path) {
+        synchronized (roots) {
+            RootStats root = roots.get(line);
+            if (root == null) {
+                root = new RootStats(line, path);
+                roots.put(line, root);
+            }
+            return root;
+        }
+    }
+
+    /**
+     * Returns the totals for the root on the given line of 'backup'.
+     */
+    public RootStats root(int line) {
+        return root(line, null);
+    }
+
+    public List<RootStats> getRoots() {
+        synchronized (roots) {
+            return new ArrayList<>(roots.values());
+        }
+    }
+
+    public void count(String counter, long delta) {
+        AtomicLong value;
+        synchronized (counters) {
+            value = counters.get(counter);
+            if (value == null) {
+                value = new AtomicLong();
+                counters.put(counter, value);
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    public long get(String counter) {
+        synchronized (counters) {
+            AtomicLong value = counters.get(counter);
+            return (value != null) ? value.get() : 0;
+        }
+    }
+
+    /**
+     * Records one pass through phase, which started at startNanos (from System.nanoTime()).
+     */
+    public void phase(String phase, long startNanos) {
+        timer(phases, phase, false).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the total time spent in phase so far, summed over every pass through it.
+     */
+    public long getPhaseNanos(String phase) {
+        synchronized (phases) {
+            Timer timer = phases.get(phase);
+            return (timer != null) ? timer.nanos.get() : 0;
+        }
+    }
+
+    /**
+     * Records one Drive call that started at startNanos, in the call's latency histogram.
+     */
+    public void driveCall(String call, long startNanos) {
+        timer(driveCalls, call, true).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Wraps out so that every byte written through it is counted under counter.
+     */
+    public OutputStream counting(OutputStream out, final String counter) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                count(counter, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                count(counter, len);
+            }
+        };
+    }
+
+    /**
+     * Writes the report to file, along with the outcome of the run and the pipeline's
+     * per-stage stats.
+     */
+    public void writeReport(File file, String outcome, List<BackupPipeline.StageStats> stages)
+            throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"startedAt\": ").append(startMillis).append(",\n");
+        json.append("  \"durationMs\": ").append(System.currentTimeMillis() - startMillis)
+                .append(",\n");
+        json.append("  \"outcome\": ").append(quote(outcome)).append(",\n");
+
+        json.append("  \"counters\": {");
+        synchronized (counters) {
+            String separator = "\n";
+            for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+                json.append(separator).append("    ").append(quote(counter.getKey()))
+                        .append(": ").append(counter.getValue().get());
+                separator = ",\n";
+            }
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"phases\": ");
+        appendTimers(json, phases);
+        json.append(",\n  \"driveCalls\": ");
+        appendTimers(json, driveCalls);
+
+        json.append(",\n  \"roots\": [");
+        String separator = "\n";
+        for (RootStats root : getRoots()) {
+            json.append(separator).append(String.format(Locale.US,
+                    "    {\"line\": %d, \"path\": %s, \"filesScanned\": %d, "
+                            + "\"filesUploaded\": %d, \"bytesUploaded\": %d, \"failures\": %d, "
+                            + "\"busyMs\": %d}",
+                    root.line, quote(String.valueOf(root.path)), root.filesScanned.get(),
+                    root.filesUploaded.get(), root.bytesUploaded.get(), root.failures.get(),
+                    root.busyNanos.get() / 1000000));
+            separator = ",\n";
+        }
+        json.append("\n  ]");
+
+        json.append(",\n  \"stages\": [");
+        separator = "\n";
+        for (BackupPipeline.StageStats stage : stages) {
+            json.append(separator).append(String.format(Locale.US,
+                    "    {\"name\": %s, \"threads\": %d, \"files\": %d, \"bytes\": %d, "
+                            + "\"elapsedMs\": %d, \"busyMs\": %d, \"blockedMs\": %d}",
+                    quote(stage.name), stage.threads, stage.items.get(), stage.bytes.get(),
+                    stage.elapsedNanos() / 1000000, stage.busyNanos.get() / 1000000,
+                    stage.blockedNanos.get() / 1000000));
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8")) {
+            writer.write(json.toString());
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new FileNotFoundException("Could not replace " + file.getPath());
+        }
+    }
+
+    private static Timer timer(Map<String, Timer> timers, String name, boolean withHistogram) {
+        synchronized (timers) {
+            Timer timer = timers.get(name);
+            if (timer == null) {
+                timer = new Timer(withHistogram);
+                timers.put(name, timer);
+            }
+            return timer;
+        }
+    }
+
+    private static void appendTimers(StringBuilder json, Map<String, Timer> timers) {
+        json.append("{");
+        synchronized (timers) {
+            String separator = "\n";
+            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                Timer timer = entry.getValue();
+                json.append(separator).append("    ").append(quote(entry.getKey()))
+                        .append(": {\"count\": ").append(timer.count.get())
+                        .append(", \"totalMs\": ").append(timer.nanos.get() / 1000000);
+                if (timer.histogram != null) {
+                    // Keyed by each bucket's upper bound in ms
+                    json.append(", \"histogramMs\": {");
+                    for (int i = 0; i < BUCKETS; i++) {
+                        String bound = (i < BUCKETS - 1) ? Long.toString(1L << i) : "inf";
+                        json.append((i > 0) ? ", " : "").append(quote(bound)).append(": ")
+                                .append(timer.histogram.get(i));
+                    }
+                    json.append("}");
+                }
+                json.append("}");
+                separator = ",\n";
+            }
+        }
+        json.append("\n  }");
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,120 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+
+/**
+ * The app's tunables, read from the 'settings' config file (java.util.Properties syntax).
+ * Any key that is missing or malformed falls back to its default.
+ */
+public class Settings {
+    public static final String HASH_THREADS = "hash.threads";
+    public static final String UPLOAD_THREADS = "upload.threads";
+    public static final String QUEUE_SIZE = "pipeline.queue.size";
+    public static final String INDEX_BATCH_FILES = "index.batch.files";
+    public static final String INDEX_BATCH_SECONDS = "index.batch.seconds";
+    public static final String CHECKPOINT_SECONDS = "checkpoint.seconds";
+    public static final String DELTA_MIN_SIZE = "delta.min.size";
+    public static final String DELTA_MAX_CHAIN = "delta.max.chain";
+    public static final String BUNDLE_MAX_FILE_SIZE = "bundle.max.file.size";
+    public static final String BUNDLE_TARGET_SIZE = "bundle.target.size";
+    public static final String COMPRESS_MIN_SAVING = "compress.min.saving";
+    public static final String UPLOAD_RATE = "upload.rate";
+    public static final String UPLOAD_RATE_METERED = "upload.rate.metered";
+    public static final String UPLOAD_BURST = "upload.burst";
+    public static final String CALL_TIMEOUT_SECONDS = "drive.call.timeout.seconds";
+
+    public static final int DEFAULT_UPLOAD_THREADS = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    public static final long DEFAULT_CHECKPOINT_SECONDS = 30;
+    public static final long DEFAULT_DELTA_MIN_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_DELTA_MAX_CHAIN = 8;
+    public static final long DEFAULT_BUNDLE_MAX_FILE_SIZE = 64 * 1024;
+    public static final long DEFAULT_BUNDLE_TARGET_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_COMPRESS_MIN_SAVING = 10;
+    public static final long DEFAULT_UPLOAD_RATE = 0;
+    public static final long DEFAULT_UPLOAD_BURST = 256 * 1024;
+    public static final long DEFAULT_CALL_TIMEOUT_SECONDS = 60;
+
+    private final Properties properties = new Properties();
+
+    private Settings() {
+    }
+
+    public static Settings load(File file) throws IOException {
+        Settings settings = new Settings();
+        if (file.isFile()) {
+            try (Reader reader = new FileReader(file)) {
+                settings.properties.load(reader);
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Writes a settings file listing every key with its default value, commented out.
+     */
+    public static void writeTemplate(File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("# Uncomment a line to override its default\n\n");
+            writer.write("# Number of files hashed at the same time (default: number of cores)\n");
+            writer.write("#" + HASH_THREADS + "=" + Runtime.getRuntime().availableProcessors() + "\n");
+            writer.write("# Most files uploaded at the same time. The actual number adapts to the\n");
+            writer.write("# connection, up to this many\n");
+            writer.write("#" + UPLOAD_THREADS + "=" + DEFAULT_UPLOAD_THREADS + "\n");
+            writer.write("# Files waiting between the walk, hash and upload stages\n");
+            writer.write("#" + QUEUE_SIZE + "=" + DEFAULT_QUEUE_SIZE + "\n");
+            writer.write("# Uploaded files recorded per write (and fsync) of the hash index\n");
+            writer.write("#" + INDEX_BATCH_FILES + "=" + HashIndex.DEFAULT_BATCH_FILES + "\n");
+            writer.write("# Longest time an upload waits to be recorded in the hash index\n");
+            writer.write("#" + INDEX_BATCH_SECONDS + "=" + HashIndex.DEFAULT_BATCH_MILLIS / 1000 + "\n");
+            writer.write("# How often an interrupted run's progress is saved for the next run\n");
+            writer.write("#" + CHECKPOINT_SECONDS + "=" + DEFAULT_CHECKPOINT_SECONDS + "\n");
+            writer.write("# Smallest file (in bytes) uploaded as a delta on lines marked --delta\n");
+            writer.write("#" + DELTA_MIN_SIZE + "=" + DEFAULT_DELTA_MIN_SIZE + "\n");
+            writer.write("# Deltas uploaded for a file before it is uploaded whole again\n");
+            writer.write("#" + DELTA_MAX_CHAIN + "=" + DEFAULT_DELTA_MAX_CHAIN + "\n");
+            writer.write("# Largest file (in bytes) packed into a bundle on lines marked --bundle\n");
+            writer.write("#" + BUNDLE_MAX_FILE_SIZE + "=" + DEFAULT_BUNDLE_MAX_FILE_SIZE + "\n");
+            writer.write("# Size (in bytes) a bundle grows to before it is uploaded\n");
+            writer.write("#" + BUNDLE_TARGET_SIZE + "=" + DEFAULT_BUNDLE_TARGET_SIZE + "\n");
+            writer.write("# Percentage a sample must shrink by for a --compress file to be gzipped\n");
+            writer.write("#" + COMPRESS_MIN_SAVING + "=" + DEFAULT_COMPRESS_MIN_SAVING + "\n");
+            writer.write("# Upload bandwidth cap in bytes per second, shared by all uploads (0: none).\n");
+            writer.write("# Changes take effect during a run\n");
+            writer.write("#" + UPLOAD_RATE + "=" + DEFAULT_UPLOAD_RATE + "\n");
+            writer.write("# The cap on metered networks (default: same as " + UPLOAD_RATE + ")\n");
+            writer.write("#" + UPLOAD_RATE_METERED + "=" + DEFAULT_UPLOAD_RATE + "\n");
+            writer.write("# Bytes that may be sent at once after the uploads have been idle\n");
+            writer.write("#" + UPLOAD_BURST + "=" + DEFAULT_UPLOAD_BURST + "\n");
+            writer.write("# Seconds a folder lookup may wait for Drive before the run fails\n");
+            writer.write("#" + CALL_TIMEOUT_SECONDS + "=" + DEFAULT_CALL_TIMEOUT_SECONDS + "\n");
+        }
+    }
+
+    public int getInt(String key, int def) {
+        return (int) getLong(key, def);
+    }
+
+    public long getLong(String key, long def) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean def) {
+        String value = properties.getProperty(key);
+        return (value == null) ? def : Boolean.parseBoolean(value.trim());
+    }
+}
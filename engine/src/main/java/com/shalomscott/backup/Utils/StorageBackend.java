@@ -0,0 +1,35 @@
+package com.shalomscott.backup.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * Where a backup's files go. Local directories map to remote folders one to one, and each
+ * file is uploaded into the folder of the directory it is in.
+ * <p>
+ * Implementations must be thread safe: the pipeline's upload stage calls them from several
+ * threads at once.
+ *
+ * @param <F> the backend's folder type
+ */
+public interface StorageBackend<F> {
+    /**
+     * Returns the folder that files and directories named directly in 'backup' go into.
+     */
+    F getRoot() throws IOException;
+
+    /**
+     * Finds or creates the folder for directory, inside parent (or the root if parent is
+     * null).
+     */
+    F getFolder(File directory, F parent) throws IOException;
+
+    /**
+     * Uploads file into folder under name, replacing whatever was stored under name before.
+     * If digest is given it is fed the bytes that were read, so the file is hashed as it
+     * uploads. Throws if the upload didn't go through.
+     */
+    void upload(File file, String name, F folder, LocalFiles.OnProgressListener listener,
+                MessageDigest digest) throws IOException;
+}
@@ -0,0 +1,148 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives AdaptiveConcurrency against a fake backend whose latency is computed from how many
+ * requests it is serving, in rounds: fill every free slot, then finish them all.
+ */
+public class AdaptiveConcurrencyTest {
+    private static final long MS = 1000 * 1000;
+
+    /**
+     * A backend that serves each request in a fixed round trip plus its share of the
+     * bandwidth, and times out requests beyond its capacity.
+     */
+    private static class FakeBackend {
+        final int capacity;
+        final long roundTripNanos;
+        final long bytesPerSecond;
+
+        FakeBackend(int capacity, long roundTripNanos, long bytesPerSecond) {
+            this.capacity = capacity;
+            this.roundTripNanos = roundTripNanos;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        boolean succeeds(int concurrent) {
+            return concurrent <= capacity;
+        }
+
+        long latencyNanos(int concurrent, long bytes) {
+            if (!succeeds(concurrent)) {
+                return 30 * 1000 * MS;
+            }
+            return roundTripNanos + bytes * concurrent * 1000 * MS / bytesPerSecond;
+        }
+    }
+
+    // Runs one round and returns the limit it ended with
+    private static int round(AdaptiveConcurrency controller, FakeBackend backend, long bytes) {
+        List<AdaptiveConcurrency.Permit> permits = new ArrayList<>();
+        AdaptiveConcurrency.Permit permit;
+        while ((permit = controller.tryAcquire()) != null) {
+            permits.add(permit);
+        }
+        int concurrent = permits.size();
+        for (AdaptiveConcurrency.Permit p : permits) {
+            controller.release(p, bytes, backend.latencyNanos(concurrent, bytes),
+                    backend.succeeds(concurrent));
+        }
+        return controller.getLimit();
+    }
+
+    @Test
+    public void growsToMaxWhenRequestsAreCheap() throws Exception {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 1, 16);
+        FakeBackend backend = new FakeBackend(100, 200 * MS, 10 * 1024 * 1024);
+
+        for (int i = 0; i < 50; i++) {
+            round(controller, backend, 1024);
+        }
+        assertEquals(16, controller.getLimit());
+        assertEquals(0, controller.getInFlight());
+    }
+
+    @Test
+    public void settlesAroundBackendCapacity() throws Exception {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 1, 64);
+        FakeBackend backend = new FakeBackend(8, 200 * MS, 10 * 1024 * 1024);
+
+        int highest = 0;
+        for (int i = 0; i < 200; i++) {
+            int limit = round(controller, backend, 1024);
+            if (i >= 20) {
+                assertTrue("limit " + limit + " in round " + i, limit >= 4 && limit <= 9);
+            }
+            highest = Math.max(highest, limit);
+        }
+        assertTrue(highest >= 8);
+    }
+
+    @Test
+    public void backsOffWhenLatencyClimbs() throws Exception {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 1, 32);
+        FakeBackend fast = new FakeBackend(100, 200 * MS, 10 * 1024 * 1024);
+        for (int i = 0; i < 40; i++) {
+            round(controller, fast, 1024);
+        }
+        int before = controller.getLimit();
+
+        // The same requests, now more than TOLERANCE times slower
+        FakeBackend slow = new FakeBackend(100, 2000 * MS, 10 * 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            round(controller, slow, 1024);
+        }
+        assertTrue(controller.getLimit() <= before / 4);
+    }
+
+    @Test
+    public void shrinksToMinOnRepeatedFailures() throws Exception {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(16, 2, 16);
+        FakeBackend down = new FakeBackend(0, 200 * MS, 10 * 1024 * 1024);
+
+        for (int i = 0; i < 10; i++) {
+            round(controller, down, 1024);
+        }
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void oneDecreasePerRound() throws Exception {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(16, 1, 16);
+        FakeBackend down = new FakeBackend(0, 200 * MS, 10 * 1024 * 1024);
+
+        // Sixteen failures from requests that all started together halve the limit once
+        round(controller, down, 1024);
+        assertEquals(8, controller.getLimit());
+    }
+
+    @Test
+    public void acquireBlocksAtTheLimit() throws Exception {
+        final AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 1, 1);
+        final AdaptiveConcurrency.Permit held = controller.acquire();
+        assertNull(controller.tryAcquire());
+
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                controller.release(held, 1024, true);
+            }
+        });
+        releaser.start();
+        AdaptiveConcurrency.Permit next = controller.acquire();
+        assertNotNull(next);
+        releaser.join();
+        assertEquals(1, controller.getInFlight());
+    }
+}
@@ -0,0 +1,110 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Gives calls deadlines they meet and deadlines they miss, and starts and stops the shared
+ * executor around them.
+ */
+public class AsyncCallsTest {
+    private AsyncCalls async;
+    // What the callback under test was told, in order
+    private final List<String> outcomes = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch told = new CountDownLatch(1);
+
+    private final AsyncCalls.Callback<String> callback = new AsyncCalls.Callback<String>() {
+        @Override
+        public void onResult(String result) {
+            outcomes.add("result " + result);
+            told.countDown();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            outcomes.add("failure " + e.getMessage());
+            told.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        async = new AsyncCalls("test", 1);
+    }
+
+    @After
+    public void tearDown() {
+        async.shutdown();
+    }
+
+    @Test
+    public void aCallEndingInTimeIsPassedOnOnce() throws Exception {
+        AsyncCalls.Callback<String> timed = async.withTimeout("call", 100, callback);
+        timed.onResult("a");
+        timed.onFailure(new IOException("late"));
+        timed.onResult("b");
+
+        // Past the deadline, which was taken out when the call ended
+        Thread.sleep(300);
+        assertEquals(Collections.singletonList("result a"), outcomes);
+    }
+
+    @Test
+    public void aCallPastItsDeadlineFails() throws Exception {
+        long start = System.nanoTime();
+        AsyncCalls.Callback<String> timed = async.withTimeout("call", 100, callback);
+        assertTrue(told.await(10, TimeUnit.SECONDS));
+        assertTrue((System.nanoTime() - start) / 1000000 >= 100);
+        assertEquals(Collections.singletonList("failure call timed out after 100ms"), outcomes);
+
+        // The answer that finally comes is dropped
+        timed.onResult("a");
+        assertEquals(1, outcomes.size());
+    }
+
+    @Test
+    public void theExecutorStartsOnUseAndStopsOnShutdown() throws Exception {
+        assertFalse(async.isRunning());
+        ExecutorService first = async.getExecutor();
+        assertTrue(async.isRunning());
+        assertSame(first, async.getExecutor());
+
+        async.shutdown();
+        assertFalse(async.isRunning());
+        assertTrue(first.awaitTermination(10, TimeUnit.SECONDS));
+
+        // A call after the shutdown gets a new one
+        final CountDownLatch ran = new CountDownLatch(1);
+        async.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertNotSame(first, async.getExecutor());
+    }
+
+    @Test
+    public void deadlinesOutliveTheShutdown() throws Exception {
+        ExecutorService executor = async.getExecutor();
+        async.withTimeout("call", 100, callback);
+        async.shutdown();
+
+        // A call still in flight fails at its deadline, and only then do the threads end
+        assertTrue(told.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("failure call timed out after 100ms"), outcomes);
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,140 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs whole backups of a small tree through the engine, into a local directory and onto a
+ * fake Drive.
+ */
+public class BackupEngineTest {
+    private File storage;
+    private File tree;
+    private File destination;
+    private HashIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = Files.createTempDirectory("engine-test").toFile();
+        tree = new File(storage, "tree");
+        write(new File(tree, "a.txt"), "alpha");
+        write(new File(tree, "sub/b.txt"), "bravo");
+        write(new File(tree, "sub/deeper/c.txt"), "charlie");
+
+        destination = new File(storage, "backup");
+        File indexDir = new File(storage, "index");
+        assertTrue(indexDir.mkdir());
+        index = HashIndex.load(indexDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+        delete(storage);
+    }
+
+    @Test
+    public void uploadsOnlyWhatChanged() throws Exception {
+        LocalBackend backend = new LocalBackend(destination);
+
+        assertNull(run(backend));
+        assertEquals(3, RunStats.current().get(RunStats.FILES_UPLOADED));
+        assertTrue(new File(destination, "tree/sub/deeper/c.txt").isFile());
+
+        // Nothing changed, so nothing is uploaded
+        assertNull(run(backend));
+        assertEquals(3, RunStats.current().get(RunStats.FILES_SKIPPED));
+        assertEquals(0, RunStats.current().get(RunStats.FILES_UPLOADED));
+
+        File b = new File(tree, "sub/b.txt");
+        write(b, "bravo, longer");
+        assertNull(run(backend));
+        assertEquals(1, RunStats.current().get(RunStats.FILES_UPLOADED));
+        assertEquals(b.length(), new File(destination, "tree/sub/b.txt").length());
+    }
+
+    @Test
+    public void failedUploadsAreNotRecorded() throws Exception {
+        FakeDriveBackend backend = new FakeDriveBackend(1);
+        backend.setFailureRate(1);
+        assertNotNull(run(backend));
+        assertEquals(0, index.size());
+
+        // Once the connection recovers, everything goes up
+        backend.setFailureRate(0);
+        assertNull(run(backend));
+        assertEquals(3, backend.getUploadCount());
+        assertEquals(3, index.size());
+        FakeDriveBackend.Folder sub = backend.getRootFolder().getFolder("tree").getFolder("sub");
+        assertEquals(5, sub.getFile("b.txt"));
+    }
+
+    @Test
+    public void fakeDriveRejectsTooManyConcurrentUploads() throws Exception {
+        // Enough files in one folder that they reach the upload stage together
+        File flat = new File(storage, "flat");
+        for (int i = 0; i < 8; i++) {
+            write(new File(flat, i + ".txt"), "file " + i);
+        }
+        FakeDriveBackend backend = new FakeDriveBackend(1);
+        backend.setLatency(50, 0);
+        backend.setMaxConcurrentUploads(1);
+        Exception error = run(backend, flat, 4);
+        assertNotNull(error);
+        assertTrue(error.getMessage(), error.getMessage().startsWith("Too many"));
+    }
+
+    // Backs up the tree in a fresh run and returns the first error, from the walk or the
+    // pipeline's stages, if any
+    private <F> Exception run(StorageBackend<F> backend) throws Exception {
+        return run(backend, tree, 2);
+    }
+
+    private <F> Exception run(StorageBackend<F> backend, File root, int uploadThreads)
+            throws Exception {
+        RunStats.start();
+        BackupPipeline<F> pipeline = new BackupPipeline<>(
+                new BackupEngine<F>(backend, index, storage), 2, uploadThreads, 16);
+        pipeline.start();
+        Exception walkError = null;
+        try {
+            pipeline.walk(root, null, new BackupOptions(JsapParser.getInstance().parse(
+                    root.getName()), 1), null);
+        } catch (Exception e) {
+            walkError = e;
+            pipeline.cancel();
+        }
+        pipeline.finish();
+        return (walkError != null) ? walkError : pipeline.getError();
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        File parent = file.getParentFile();
+        assertTrue(parent.isDirectory() || parent.mkdirs());
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes("UTF-8"));
+        }
+        // Make sure a rewrite is seen even within the filesystem's timestamp resolution
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 10000 + contents.length()));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,257 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packs files into segments from several threads at once, and checks that every file lands in
+ * exactly one uploaded segment and one index line, and that flush waits for segments other
+ * threads are still uploading.
+ */
+public class BundleWriterTest {
+    private File directory;
+    private File tree;
+    // Uploaded segments, by name, as their entries' contents by path
+    private final Map<String, Map<String, String>> uploaded =
+            Collections.synchronizedMap(new HashMap<String, Map<String, String>>());
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("bundle-test").toFile();
+        tree = new File(directory, "tree");
+        assertTrue(tree.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void everyFileLandsInOneSegment() throws Exception {
+        final BundleWriter writer = new BundleWriter(directory, directory, 4096,
+                new BundleWriter.SegmentUploader() {
+                    @Override
+                    public void uploadSegment(File segmentFile, String name,
+                                              List<BundleWriter.Member> members)
+                            throws IOException {
+                        uploaded.put(name, read(segmentFile));
+                    }
+                });
+
+        final int threads = 4;
+        final int filesPerThread = 50;
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int worker = t;
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < filesPerThread; i++) {
+                            add(writer, "w" + worker + "/f" + i + ".txt",
+                                    repeat("w" + worker + "f" + i + ";", i + 1));
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+        assertEquals(0, errors.size());
+        writer.flush();
+
+        assertTrue(uploaded.size() > 1);
+        Set<String> paths = new HashSet<>();
+        for (Map<String, String> segment : uploaded.values()) {
+            for (Map.Entry<String, String> entry : segment.entrySet()) {
+                assertTrue(entry.getKey(), paths.add(entry.getKey()));
+                assertEquals(new String(Files.readAllBytes(new File(tree, entry.getKey())
+                        .toPath()), "UTF-8"), entry.getValue());
+            }
+        }
+        assertEquals(threads * filesPerThread, paths.size());
+
+        List<String[]> lines = readIndex();
+        assertEquals(threads * filesPerThread, lines.size());
+        for (String[] line : lines) {
+            assertTrue(uploaded.get(line[0]).containsKey(line[3]));
+        }
+        // Nothing is left behind in the cache directory
+        assertEquals(0, directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("segment");
+            }
+        }).length);
+    }
+
+    @Test
+    public void flushWaitsForSegmentsBeingUploaded() throws Exception {
+        final CountDownLatch uploading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final BundleWriter writer = new BundleWriter(directory, directory, 1,
+                new BundleWriter.SegmentUploader() {
+                    @Override
+                    public void uploadSegment(File segmentFile, String name,
+                                              List<BundleWriter.Member> members)
+                            throws IOException {
+                        uploading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        uploaded.put(name, read(segmentFile));
+                    }
+                });
+
+        // Fills a segment on its own, so this thread seals it and blocks uploading it
+        Thread adder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    add(writer, "a.txt", "alpha");
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        adder.start();
+        assertTrue(uploading.await(10, TimeUnit.SECONDS));
+
+        final CountDownLatch flushed = new CountDownLatch(1);
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.flush();
+                    flushed.countDown();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        flusher.start();
+        assertFalse(flushed.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, readIndex().size());
+
+        release.countDown();
+        assertTrue(flushed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, readIndex().size());
+        adder.join();
+        flusher.join();
+    }
+
+    @Test
+    public void aFailedSegmentIsNotIndexed() throws Exception {
+        BundleWriter writer = new BundleWriter(directory, directory, 1 << 20,
+                new BundleWriter.SegmentUploader() {
+                    @Override
+                    public void uploadSegment(File segmentFile, String name,
+                                              List<BundleWriter.Member> members)
+                            throws IOException {
+                        throw new IOException("Offline");
+                    }
+                });
+        add(writer, "a.txt", "alpha");
+        try {
+            writer.flush();
+            fail("Expected the upload's failure");
+        } catch (IOException expected) {
+            // The next run bundles a.txt again
+        }
+        assertEquals(0, readIndex().size());
+        writer.flush(); // Nothing left to upload
+    }
+
+    private void add(BundleWriter writer, String path, String contents) throws Exception {
+        File file = new File(tree, path);
+        if (!file.getParentFile().isDirectory()) {
+            assertTrue(file.getParentFile().mkdirs());
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes("UTF-8"));
+        }
+        writer.add(file, path, 1, file.length(), file.lastModified());
+    }
+
+    private List<String[]> readIndex() throws IOException {
+        List<String[]> lines = new ArrayList<>();
+        File index = new File(directory, "bundles");
+        if (!index.isFile()) {
+            return lines;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(index), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line.split("\t"));
+            }
+        }
+        return lines;
+    }
+
+    private static Map<String, String> read(File segmentFile) throws IOException {
+        Map<String, String> entries = new HashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new FileInputStream(segmentFile))) {
+            ZipEntry entry;
+            byte[] buffer = new byte[8192];
+            while ((entry = zip.getNextEntry()) != null) {
+                StringBuilder contents = new StringBuilder();
+                int read;
+                while ((read = zip.read(buffer)) != -1) {
+                    contents.append(new String(buffer, 0, read, "UTF-8"));
+                }
+                entries.put(entry.getName(), contents.toString());
+            }
+        }
+        return entries;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,121 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Saves checkpoints and loads them back, under the stamp of the config they were taken for
+ * and under others.
+ */
+public class CheckpointTest {
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("checkpoint-test").toFile();
+        file = new File(directory, "checkpoint");
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void survivesARoundTrip() throws Exception {
+        Checkpoint saved = new Checkpoint(3, "/sdcard/DCIM/b.jpg",
+                Arrays.asList("/sdcard/DCIM/c.jpg", "/sdcard/DCIM/d e=f:g.jpg"), 2);
+        saved.save(file, "10:1000");
+        assertFalse(new File(directory, "checkpoint.tmp").exists());
+
+        Checkpoint loaded = Checkpoint.load(file, "10:1000");
+        assertNotNull(loaded);
+        assertEquals(3, loaded.line);
+        assertEquals("/sdcard/DCIM/b.jpg", loaded.cursor);
+        assertEquals(saved.inFlight, loaded.inFlight);
+        assertEquals(2, loaded.stalls);
+
+        // Nothing handled yet: no cursor and nothing in flight
+        new Checkpoint(0, null, Collections.<String>emptyList()).save(file, "10:1000");
+        loaded = Checkpoint.load(file, "10:1000");
+        assertNotNull(loaded);
+        assertEquals(0, loaded.line);
+        assertNull(loaded.cursor);
+        assertEquals(0, loaded.inFlight.size());
+        assertEquals(0, loaded.stalls);
+    }
+
+    @Test
+    public void aStaleStampIsIgnored() throws Exception {
+        File config = new File(directory, "backup");
+        write(config, "DCIM\n");
+        String stamp = Checkpoint.stampOf(config);
+        new Checkpoint(1, "/sdcard/DCIM/a.jpg", Collections.<String>emptyList())
+                .save(file, stamp);
+
+        // Adding a line moves every line after it, so the old line numbers mean nothing
+        write(config, "Music\nDCIM\n");
+        String edited = Checkpoint.stampOf(config);
+        assertFalse(stamp.equals(edited));
+        assertNull(Checkpoint.load(file, edited));
+        assertNotNull(Checkpoint.load(file, stamp));
+    }
+
+    @Test
+    public void aMissingOrDamagedCheckpointIsIgnored() throws Exception {
+        assertNull(Checkpoint.load(file, "10:1000"));
+
+        write(file, "config=10:1000\nline=three\n");
+        assertNull(Checkpoint.load(file, "10:1000"));
+
+        new Checkpoint(1, "/sdcard/a.txt", Collections.<String>emptyList()).save(file, "10:1000");
+        Checkpoint.clear(file);
+        assertFalse(file.exists());
+        assertNull(Checkpoint.load(file, "10:1000"));
+    }
+
+    @Test
+    public void withStallsKeepsTheRest() throws Exception {
+        Checkpoint checkpoint = new Checkpoint(4, "/sdcard/a.txt",
+                Collections.singletonList("/sdcard/b.txt"));
+        assertEquals(0, checkpoint.stalls);
+
+        Checkpoint stalled = checkpoint.withStalls(5);
+        assertEquals(5, stalled.stalls);
+        assertEquals(4, stalled.line);
+        assertEquals("/sdcard/a.txt", stalled.cursor);
+        assertEquals(checkpoint.inFlight, stalled.inFlight);
+        assertEquals(0, checkpoint.stalls);
+
+        stalled.save(file, "10:1000");
+        assertEquals(5, Checkpoint.load(file, "10:1000").stalls);
+    }
+
+    private static void write(File file, String contents) throws Exception {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes("UTF-8"));
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
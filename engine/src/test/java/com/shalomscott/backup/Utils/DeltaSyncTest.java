@@ -0,0 +1,199 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips edited files through a delta against their previous version: whatever the edit,
+ * applying the delta to the old version must give back the new one byte for byte.
+ */
+public class DeltaSyncTest {
+    private static final int BLOCK_SIZE = 4096;
+
+    private File directory;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("delta-test").toFile();
+        random = new Random(7);
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void anUnchangedFileIsAllCopies() throws Exception {
+        byte[] base = randomBytes(10 * BLOCK_SIZE + 123);
+        byte[] delta = roundTrip(base, base);
+        // Header, one copy of the whole blocks, the partial tail as data, and the end
+        assertTrue("Delta of " + delta.length + "B", delta.length < 200 + 123);
+    }
+
+    @Test
+    public void insertionsAndDeletions() throws Exception {
+        byte[] base = randomBytes(40 * BLOCK_SIZE);
+        // A few bytes in the middle of a block, so every block after it is shifted
+        roundTrip(base, splice(base, 5 * BLOCK_SIZE + 17, 0, randomBytes(3)));
+        // More than the literal buffer holds at once, so the scan has to slide its window
+        roundTrip(base, splice(base, 7 * BLOCK_SIZE, 0, randomBytes(100 * 1024)));
+        roundTrip(base, splice(base, 3 * BLOCK_SIZE + 1, 2 * BLOCK_SIZE + 500, new byte[0]));
+        roundTrip(base, splice(base, 0, 0, randomBytes(10)));
+        roundTrip(base, splice(base, 0, 10, new byte[0]));
+        roundTrip(base, splice(base, base.length, 0, randomBytes(BLOCK_SIZE + 1)));
+        roundTrip(base, Arrays.copyOf(base, base.length - 1));
+        // Only the first byte of every block changed
+        byte[] edited = base.clone();
+        for (int i = 0; i < edited.length; i += BLOCK_SIZE) {
+            edited[i] ^= 1;
+        }
+        roundTrip(base, edited);
+    }
+
+    @Test
+    public void blocksMovedAcrossBoundaries() throws Exception {
+        byte[] base = randomBytes(20 * BLOCK_SIZE + 1000);
+        // Swap two runs of blocks, neither starting on a block boundary
+        int a = 2 * BLOCK_SIZE + 100;
+        int b = 12 * BLOCK_SIZE + 2000;
+        int length = 3 * BLOCK_SIZE + 7;
+        byte[] edited = base.clone();
+        System.arraycopy(base, a, edited, b, length);
+        System.arraycopy(base, b, edited, a, length);
+        roundTrip(base, edited);
+
+        // The same block repeated, and blocks in reverse order
+        ByteArrayOutputStream reordered = new ByteArrayOutputStream();
+        for (int i = 19; i >= 0; i--) {
+            reordered.write(base, i * BLOCK_SIZE, BLOCK_SIZE);
+            reordered.write(base, 4 * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        roundTrip(base, reordered.toByteArray());
+    }
+
+    @Test
+    public void emptyAndSubBlockFiles() throws Exception {
+        byte[] empty = new byte[0];
+        byte[] small = randomBytes(BLOCK_SIZE - 1);
+        byte[] large = randomBytes(3 * BLOCK_SIZE);
+
+        roundTrip(empty, empty);
+        roundTrip(empty, small);
+        roundTrip(empty, large);
+        roundTrip(small, empty);
+        roundTrip(large, empty);
+        roundTrip(small, small);
+        roundTrip(small, splice(small, 10, 0, randomBytes(5)));
+        roundTrip(large, Arrays.copyOfRange(large, BLOCK_SIZE, BLOCK_SIZE + 10));
+        // Exactly one block, which is a whole block of the base
+        roundTrip(large, Arrays.copyOfRange(large, BLOCK_SIZE, 2 * BLOCK_SIZE));
+    }
+
+    @Test
+    public void givesUpPastTheLiteralLimit() throws Exception {
+        byte[] base = randomBytes(10 * BLOCK_SIZE);
+        byte[] edited = splice(base, BLOCK_SIZE, 0, randomBytes(2 * BLOCK_SIZE));
+        DeltaSync.Signature signature = signature(base);
+
+        assertFalse(DeltaSync.writeDelta(new ByteArrayInputStream(edited), signature,
+                new ByteArrayOutputStream(), new DeltaSync.SignatureBuilder(BLOCK_SIZE),
+                LocalFiles.newDigest(), BLOCK_SIZE));
+        assertTrue(DeltaSync.writeDelta(new ByteArrayInputStream(edited), signature,
+                new ByteArrayOutputStream(), new DeltaSync.SignatureBuilder(BLOCK_SIZE),
+                LocalFiles.newDigest(), 2 * BLOCK_SIZE));
+    }
+
+    @Test
+    public void signaturesSurviveARoundTrip() throws Exception {
+        byte[] base = randomBytes(5 * BLOCK_SIZE + 99);
+        DeltaSync.Signature signature = signature(base);
+        File file = new File(directory, "signature");
+        signature.save(file);
+        DeltaSync.Signature loaded = DeltaSync.Signature.load(file);
+        assertEquals(signature.length, loaded.length);
+        assertEquals(signature.blockSize, loaded.blockSize);
+        assertTrue(Arrays.equals(signature.weak, loaded.weak));
+        assertTrue(Arrays.deepEquals(signature.strong, loaded.strong));
+    }
+
+    // Writes the delta from base to edited, applies it to base and checks it gives edited.
+    // Also checks what writeDelta fed to the next signature and the digest. Returns the delta
+    private byte[] roundTrip(byte[] base, byte[] edited) throws Exception {
+        DeltaSync.SignatureBuilder next = new DeltaSync.SignatureBuilder(BLOCK_SIZE);
+        MessageDigest digest = LocalFiles.newDigest();
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertTrue(DeltaSync.writeDelta(new ByteArrayInputStream(edited), signature(base), delta,
+                next, digest, Long.MAX_VALUE));
+
+        File baseFile = new File(directory, "base");
+        try (OutputStream out = new FileOutputStream(baseFile)) {
+            out.write(base);
+        }
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        try (RandomAccessFile raf = new RandomAccessFile(baseFile, "r")) {
+            DeltaSync.applyDelta(raf, new ByteArrayInputStream(delta.toByteArray()), restored);
+        }
+        assertArrayEquals("Restored " + restored.size() + "B of " + edited.length + "B",
+                edited, restored.toByteArray());
+
+        assertArrayEquals(LocalFiles.newDigest().digest(edited), digest.digest());
+        DeltaSync.Signature expected = signature(edited);
+        DeltaSync.Signature actual = next.finish(0);
+        assertEquals(expected.length, actual.length);
+        assertTrue(Arrays.equals(expected.weak, actual.weak));
+        assertTrue(Arrays.deepEquals(expected.strong, actual.strong));
+        return delta.toByteArray();
+    }
+
+    private static DeltaSync.Signature signature(byte[] bytes) throws Exception {
+        DeltaSync.SignatureBuilder builder = new DeltaSync.SignatureBuilder(BLOCK_SIZE);
+        // In uneven pieces, as a stream would hand them over
+        for (int off = 0; off < bytes.length; off += 1000) {
+            builder.update(bytes, off, Math.min(1000, bytes.length - off));
+        }
+        return builder.finish(0);
+    }
+
+    // Returns bytes with length bytes at off replaced by insert
+    private static byte[] splice(byte[] bytes, int off, int length, byte[] insert) {
+        byte[] result = new byte[bytes.length - length + insert.length];
+        System.arraycopy(bytes, 0, result, 0, off);
+        System.arraycopy(insert, 0, result, off, insert.length);
+        System.arraycopy(bytes, off + length, result, off + insert.length,
+                bytes.length - off - length);
+        return result;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,121 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Walks a small tree and checks the order entries come in, where a resumed walk picks up, and
+ * that excluded directories are never entered.
+ */
+public class DirectoryWalkerTest {
+    private File tree;
+
+    @Before
+    public void setUp() throws Exception {
+        tree = Files.createTempDirectory("walker-test").toFile();
+        for (String path : new String[]{"b.txt", "a/2.txt", "a/1.txt", "a/cache/x.bin",
+                "a/sub/deep/y.txt", "c/z.tmp", "c/z.txt"}) {
+            File file = new File(tree, path);
+            assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+            assertTrue(file.createNewFile());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        delete(tree);
+    }
+
+    @Test
+    public void walksDirectoriesBeforeChildrenInNameOrder() throws Exception {
+        assertEquals(Arrays.asList("+", "+a", "a/1.txt", "a/2.txt", "+a/cache", "a/cache/x.bin",
+                "+a/sub", "+a/sub/deep", "a/sub/deep/y.txt", "b.txt", "+c", "c/z.tmp",
+                "c/z.txt"), walk(null, null));
+    }
+
+    @Test
+    public void resumesAfterTheGivenFile() throws Exception {
+        // Directories on the way are entered again, but nothing before them is
+        assertEquals(Arrays.asList("+", "+a", "+a/sub", "+a/sub/deep", "b.txt", "+c", "c/z.tmp",
+                "c/z.txt"), walk(new File(tree, "a/sub/deep/y.txt"), null));
+        // A file that is gone since resumes with whatever follows it
+        assertEquals(Arrays.asList("+", "+c", "c/z.txt"), walk(new File(tree, "c/z.tmq"), null));
+        assertEquals(Arrays.asList(), walk(tree, null));
+    }
+
+    @Test
+    public void excludedDirectoriesAreNeverEntered() throws Exception {
+        assertEquals(Arrays.asList("+", "+a", "a/1.txt", "a/2.txt", "b.txt", "+c", "c/z.txt"),
+                walk(null, new String[]{"cache/", "a/sub", "*.tmp"}));
+        // Anchored at the root, and matching files only below a's own
+        assertEquals(Arrays.asList("+", "+a", "a/1.txt", "a/2.txt", "+a/cache", "+a/sub",
+                "+a/sub/deep", "b.txt", "+c", "c/z.tmp", "c/z.txt"),
+                walk(null, new String[]{"a/**/?.???"}));
+    }
+
+    @Test
+    public void stopsBetweenEntries() throws Exception {
+        final List<String> visited = new ArrayList<>();
+        DirectoryWalker<Void> walker = new DirectoryWalker<Void>(
+                new DirectoryWalker.Visitor<Void>() {
+                    @Override
+                    public Void enterDirectory(File directory, Void parent) {
+                        return null;
+                    }
+
+                    @Override
+                    public void visitFile(File file, Void parent) {
+                        visited.add(file.getName());
+                    }
+                }) {
+            @Override
+            protected boolean shouldStop() {
+                return !visited.isEmpty();
+            }
+        };
+        walker.walk(tree, null);
+        assertEquals(Arrays.asList("1.txt"), visited);
+    }
+
+    // Returns what a walk visits, relative to the tree, with directories marked by a '+'
+    private List<String> walk(File resumeAfter, String[] excludes) throws Exception {
+        final List<String> visited = new ArrayList<>();
+        DirectoryWalker<Void> walker = new DirectoryWalker<>(new DirectoryWalker.Visitor<Void>() {
+            @Override
+            public Void enterDirectory(File directory, Void parent) {
+                visited.add("+" + (directory.equals(tree)
+                        ? "" : LocalFiles.getRelativePath(tree, directory)));
+                return null;
+            }
+
+            @Override
+            public void visitFile(File file, Void parent) {
+                visited.add(LocalFiles.getRelativePath(tree, file));
+            }
+        });
+        walker.setResumeAfter(resumeAfter);
+        walker.setFilter(DirectoryWalker.excluding(excludes));
+        walker.walk(tree, null);
+        return visited;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,217 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes entries to an index and loads them back, including from logs damaged or left in a
+ * format the index doesn't know, and checks when the log is written and compacted.
+ */
+public class HashIndexTest {
+    // Magic and version
+    private static final int HEADER_SIZE = 8;
+
+    private File directory;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("index-test").toFile();
+        indexFile = new File(directory, "index");
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void entriesSurviveAReload() throws Exception {
+        HashIndex index = HashIndex.load(directory);
+        index.put("a.txt", entry(5, 1000, 1));
+        index.put("sub/b.txt", entry(7, 2000, 2));
+        index.put("a.txt", entry(6, 3000, 3));
+        index.put("\u05e9\u05dc\u05d5\u05dd/c.txt", entry(0, 4000, 4));
+        index.close();
+
+        index = HashIndex.load(directory);
+        assertEquals(3, index.size());
+        assertEntry(entry(6, 3000, 3), index.get("a.txt"));
+        assertEntry(entry(7, 2000, 2), index.get("sub/b.txt"));
+        assertEntry(entry(0, 4000, 4), index.get("\u05e9\u05dc\u05d5\u05dd/c.txt"));
+        assertNull(index.get("missing.txt"));
+        index.close();
+    }
+
+    @Test
+    public void aRecordCutOffIsDropped() throws Exception {
+        HashIndex index = HashIndex.load(directory);
+        index.put("a.txt", entry(5, 1000, 1));
+        index.flush();
+        index.put("b.txt", entry(7, 2000, 2));
+        index.close();
+
+        // As if the process died half way through writing b.txt's record
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        index = HashIndex.load(directory);
+        assertEquals(1, index.size());
+        assertEntry(entry(5, 1000, 1), index.get("a.txt"));
+        assertNull(index.get("b.txt"));
+        // The torn record is gone from the log too, so new records aren't appended after it
+        assertEquals(HEADER_SIZE + recordSize("a.txt"), indexFile.length());
+        index.put("c.txt", entry(9, 3000, 3));
+        index.close();
+
+        index = HashIndex.load(directory);
+        assertEquals(2, index.size());
+        assertEntry(entry(9, 3000, 3), index.get("c.txt"));
+        index.close();
+    }
+
+    @Test
+    public void anUnknownFormatStartsOver() throws Exception {
+        HashIndex index = HashIndex.load(directory);
+        index.put("a.txt", entry(5, 1000, 1));
+        index.close();
+
+        // Bump the version past what the index knows
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.seek(4);
+            raf.writeInt(99);
+        }
+
+        index = HashIndex.load(directory);
+        assertEquals(0, index.size());
+        assertEquals(HEADER_SIZE, indexFile.length());
+        index.close();
+    }
+
+    @Test
+    public void pathsTooLongForARecordAreRejected() throws Exception {
+        char[] name = new char[0x10000];
+        Arrays.fill(name, 'x');
+        HashIndex index = HashIndex.load(directory);
+        index.put("a.txt", entry(5, 1000, 1));
+        try {
+            index.put(new String(name), entry(7, 2000, 2));
+            fail("Expected an over-long path to be rejected");
+        } catch (IOException expected) {
+            // Nothing was recorded for it
+        }
+        index.put("b.txt", entry(9, 3000, 3));
+        index.close();
+
+        index = HashIndex.load(directory);
+        assertEquals(2, index.size());
+        assertEntry(entry(9, 3000, 3), index.get("b.txt"));
+        index.close();
+    }
+
+    @Test
+    public void updatesReachTheLogInBatches() throws Exception {
+        HashIndex index = HashIndex.load(directory);
+        index.setBatch(3, 60 * 1000);
+        index.put("a.txt", entry(5, 1000, 1));
+        index.put("b.txt", entry(7, 2000, 2));
+        // Visible right away, but not written until the batch is full
+        assertEntry(entry(7, 2000, 2), index.get("b.txt"));
+        assertEquals(HEADER_SIZE, indexFile.length());
+        index.put("c.txt", entry(9, 3000, 3));
+        assertEquals(HEADER_SIZE + 3 * recordSize("a.txt"), indexFile.length());
+
+        // A path updated twice within a batch is written once, as it ended up
+        index.put("a.txt", entry(6, 4000, 4));
+        index.put("a.txt", entry(8, 5000, 5));
+        index.flush();
+        assertEquals(HEADER_SIZE + 4 * recordSize("a.txt"), indexFile.length());
+
+        // With no time allowed, every update is its own batch
+        index.setBatch(100, 0);
+        index.put("d.txt", entry(1, 6000, 6));
+        assertEquals(HEADER_SIZE + 5 * recordSize("a.txt"), indexFile.length());
+        index.close();
+
+        index = HashIndex.load(directory);
+        assertEquals(4, index.size());
+        assertEntry(entry(8, 5000, 5), index.get("a.txt"));
+        index.close();
+    }
+
+    @Test
+    public void aLogOfMostlySupersededRecordsIsCompacted() throws Exception {
+        HashIndex index = HashIndex.load(directory);
+        index.setBatch(1, 60 * 1000);
+        index.put("b.txt", entry(7, 2000, 2));
+        for (int i = 0; i < 2000; i++) {
+            index.put("a.txt", entry(i, 1000 + i, i));
+        }
+        assertEquals(HEADER_SIZE + 2001 * recordSize("a.txt"), indexFile.length());
+        index.close();
+
+        // Rewritten with a record per entry, and the new log fully replaced the old one
+        assertEquals(HEADER_SIZE + 2 * recordSize("a.txt"), indexFile.length());
+        assertFalse(new File(directory, "index.tmp").exists());
+        index = HashIndex.load(directory);
+        assertEquals(2, index.size());
+        assertEntry(entry(1999, 2999, 1999), index.get("a.txt"));
+        assertEntry(entry(7, 2000, 2), index.get("b.txt"));
+        index.close();
+    }
+
+    @Test
+    public void aFewSupersededRecordsAreLeftInPlace() throws Exception {
+        HashIndex index = HashIndex.load(directory);
+        index.setBatch(1, 60 * 1000);
+        for (int i = 0; i < 10; i++) {
+            index.put("a.txt", entry(i, 1000 + i, i));
+        }
+        index.close();
+
+        // Not worth a rewrite yet
+        assertEquals(HEADER_SIZE + 10 * recordSize("a.txt"), indexFile.length());
+        index = HashIndex.load(directory);
+        assertEntry(entry(9, 1009, 9), index.get("a.txt"));
+        index.close();
+    }
+
+    private static HashIndex.Entry entry(long length, long lastModified, int seed) {
+        byte[] digest = new byte[16];
+        Arrays.fill(digest, (byte) seed);
+        return new HashIndex.Entry(length, lastModified, digest);
+    }
+
+    private static void assertEntry(HashIndex.Entry expected, HashIndex.Entry actual) {
+        assertNotNull(actual);
+        assertEquals(expected.length, actual.length);
+        assertEquals(expected.lastModified, actual.lastModified);
+        assertArrayEquals(expected.digest, actual.digest);
+    }
+
+    // Path length, path, length, last modified and digest
+    private static long recordSize(String path) throws Exception {
+        return 2 + path.getBytes("UTF-8").length + 8 + 8 + 16;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,139 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs backups onto a slow fake Drive with folders looked up in the background, and checks
+ * that files still land in their folders, that the walk doesn't wait for the lookups, and
+ * that a lookup past its timeout fails the run.
+ */
+public class PipelinedFoldersTest {
+    private static final int DIRECTORIES = 10;
+    private static final long LATENCY_MILLIS = 100;
+
+    private File storage;
+    private File tree;
+    private HashIndex index;
+    private FakeDriveBackend backend;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = Files.createTempDirectory("pipelined-test").toFile();
+        tree = new File(storage, "tree");
+        write(new File(tree, "a.txt"), "alpha");
+        for (int i = 0; i < DIRECTORIES; i++) {
+            write(new File(tree, "d" + i + "/sub/f" + i + ".txt"), "file " + i);
+        }
+
+        File indexDir = new File(storage, "index");
+        assertTrue(indexDir.mkdir());
+        index = HashIndex.load(indexDir);
+        backend = new FakeDriveBackend(1);
+        backend.setLatency(LATENCY_MILLIS, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        backend.shutdown();
+        index.close();
+        delete(storage);
+    }
+
+    @Test
+    public void everyFileLandsInItsFolder() throws Exception {
+        assertNull(run());
+        assertEquals(DIRECTORIES + 1, backend.getUploadCount());
+        assertEquals(DIRECTORIES + 1, index.size());
+
+        FakeDriveBackend.Folder top = backend.getRootFolder().getFolder("tree");
+        assertEquals(5, top.getFile("a.txt"));
+        for (int i = 0; i < DIRECTORIES; i++) {
+            FakeDriveBackend.Folder sub = top.getFolder("d" + i).getFolder("sub");
+            assertEquals(("file " + i).length(), sub.getFile("f" + i + ".txt"));
+        }
+    }
+
+    @Test
+    public void theWalkDoesNotWaitForLookups() throws Exception {
+        RunStats.start();
+        BackupPipeline<PipelinedFolders.Pending<FakeDriveBackend.Folder>> pipeline =
+                newPipeline();
+        pipeline.start();
+        long start = System.nanoTime();
+        pipeline.walk(tree, null, options(), null);
+        long walkMillis = (System.nanoTime() - start) / 1000000;
+        pipeline.finish();
+        assertNull(pipeline.getError());
+
+        // Looked up one after another, the folders would take over two seconds
+        assertTrue("Walked in " + walkMillis + "ms", walkMillis < (2 * DIRECTORIES + 1)
+                * LATENCY_MILLIS / 2);
+        assertEquals(DIRECTORIES + 1, backend.getUploadCount());
+    }
+
+    @Test
+    public void aLookupPastItsTimeoutFailsTheRun() throws Exception {
+        backend.setCallTimeout(LATENCY_MILLIS / 4);
+        Exception error = run();
+        assertNotNull(error);
+        assertTrue(error.getMessage(), error.getMessage().contains("timed out"));
+        assertEquals(0, backend.getUploadCount());
+        assertEquals(0, index.size());
+    }
+
+    // Backs up the tree in a fresh run and returns the first error, from the walk or the
+    // pipeline's stages, if any
+    private Exception run() throws Exception {
+        RunStats.start();
+        BackupPipeline<PipelinedFolders.Pending<FakeDriveBackend.Folder>> pipeline =
+                newPipeline();
+        pipeline.start();
+        Exception walkError = null;
+        try {
+            pipeline.walk(tree, null, options(), null);
+        } catch (Exception e) {
+            walkError = e;
+            pipeline.cancel();
+        }
+        pipeline.finish();
+        return (walkError != null) ? walkError : pipeline.getError();
+    }
+
+    private BackupPipeline<PipelinedFolders.Pending<FakeDriveBackend.Folder>> newPipeline() {
+        return new BackupPipeline<>(new PipelinedFolders<>(
+                new BackupEngine<>(backend, index, storage), backend), 2, 4, 64);
+    }
+
+    private BackupOptions options() throws Exception {
+        return new BackupOptions(JsapParser.getInstance().parse(tree.getName()), 1);
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        File parent = file.getParentFile();
+        assertTrue(parent.isDirectory() || parent.mkdirs());
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes("UTF-8"));
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,53 @@
+package com.shalomscott.backup.Utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks each case of the resume delay: a run that is nearly done, one that made progress,
+ * and one that stalled, however many times in a row.
+ */
+public class ResumePolicyTest {
+
+    @Test
+    public void aNearlyDoneRunResumesSoonest() {
+        assertEquals(ResumePolicy.NEARLY_DONE_DELAY_MILLIS,
+                ResumePolicy.delayMillis(true, 0, true, 0));
+        assertEquals(ResumePolicy.NEARLY_DONE_DELAY_MILLIS,
+                ResumePolicy.delayMillis(true, 0, true, ResumePolicy.NEARLY_DONE_FILES));
+    }
+
+    @Test
+    public void aRunMakingProgressResumesSoon() {
+        // Too many files left, or more still to be walked
+        assertEquals(ResumePolicy.PROGRESS_DELAY_MILLIS,
+                ResumePolicy.delayMillis(true, 0, true, ResumePolicy.NEARLY_DONE_FILES + 1));
+        assertEquals(ResumePolicy.PROGRESS_DELAY_MILLIS,
+                ResumePolicy.delayMillis(true, 0, false, 0));
+        // Progress resets the back off, whatever stalls were passed
+        assertEquals(ResumePolicy.PROGRESS_DELAY_MILLIS,
+                ResumePolicy.delayMillis(true, 7, false, 1000));
+    }
+
+    @Test
+    public void aStalledRunBacksOffExponentially() {
+        long base = ResumePolicy.PROGRESS_DELAY_MILLIS;
+        assertEquals(base, ResumePolicy.delayMillis(false, 0, false, 1000));
+        assertEquals(2 * base, ResumePolicy.delayMillis(false, 1, false, 1000));
+        assertEquals(4 * base, ResumePolicy.delayMillis(false, 2, false, 1000));
+        assertEquals(8 * base, ResumePolicy.delayMillis(false, 3, true, 0));
+    }
+
+    @Test
+    public void theBackOffIsCappedAtAnHour() {
+        assertEquals(60 * 60 * 1000, ResumePolicy.MAX_DELAY_MILLIS);
+        // 30s doubled 7 times is past an hour
+        assertEquals(64 * ResumePolicy.PROGRESS_DELAY_MILLIS,
+                ResumePolicy.delayMillis(false, 6, false, 1000));
+        assertEquals(ResumePolicy.MAX_DELAY_MILLIS,
+                ResumePolicy.delayMillis(false, 7, false, 1000));
+        assertEquals(ResumePolicy.MAX_DELAY_MILLIS,
+                ResumePolicy.delayMillis(false, Integer.MAX_VALUE, false, 1000));
+    }
+}
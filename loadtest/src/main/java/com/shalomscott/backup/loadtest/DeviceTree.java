@@ -0,0 +1,200 @@
+package com.shalomscott.backup.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates sdcard-like trees of files for the load test, from a fixed seed.
+ * <p>
+ * Files are sparse: each gets a random header, so no two have the same contents, and the rest
+ * is a hole. A tree of hundreds of gigabytes takes almost no disk space, while still being read
+ * and hashed in full by a backup.
+ */
+public class DeviceTree {
+    // Random bytes at the start of every file
+    private static final int HEADER_SIZE = 4096;
+    // Modification times are spread back from here, so they are the same on every generation
+    private static final long BASE_TIME = 1475280000000L; // 2016-10-01
+
+    /**
+     * One kind of content: count files of minSize to maxSize bytes under dir, filesPerDir to a
+     * directory, with the directories nested depth levels below dir.
+     */
+    public static class Layer {
+        final String dir;
+        final int count;
+        final long minSize;
+        final long maxSize;
+        final int depth;
+        final int filesPerDir;
+        final String extension;
+
+        Layer(String dir, int count, long minSize, long maxSize, int depth, int filesPerDir,
+              String extension) {
+            this.dir = dir;
+            this.count = count;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.depth = depth;
+            this.filesPerDir = filesPerDir;
+            this.extension = extension;
+        }
+    }
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+    private static final long GB = 1024 * MB;
+
+    private static final Layer PHOTOS =
+            new Layer("DCIM/Camera", 50000, 1536 * KB, 6 * MB, 0, 50000, ".jpg");
+    private static final Layer APPS =
+            new Layer("Android/data", 20000, 512, 64 * KB, 6, 20, ".dat");
+    private static final Layer VIDEOS =
+            new Layer("Movies", 3, 4 * GB, 4 * GB, 0, 3, ".mp4");
+    private static final Layer TINY =
+            new Layer("Documents/notes", 30000, 16, 2 * KB, 2, 500, ".txt");
+
+    /**
+     * The trees the load test knows, by name.
+     */
+    public static final Map<String, List<Layer>> PROFILES = new LinkedHashMap<>();
+
+    static {
+        PROFILES.put("photos", Collections.singletonList(PHOTOS));
+        PROFILES.put("apps", Collections.singletonList(APPS));
+        PROFILES.put("videos", Collections.singletonList(VIDEOS));
+        PROFILES.put("tiny", Collections.singletonList(TINY));
+        PROFILES.put("sdcard", Arrays.asList(PHOTOS, APPS, VIDEOS, TINY));
+    }
+
+    public final File root;
+    // The top directory of each layer, as named on a line of 'backup'
+    public final List<File> tops = new ArrayList<>();
+    public final List<File> files = new ArrayList<>();
+    public long totalBytes = 0;
+
+    private DeviceTree(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Generates the named profile under root. scale multiplies the number of files in each
+     * layer, and sizeScale their sizes.
+     */
+    public static DeviceTree generate(String profile, File root, double scale, double sizeScale,
+                                      long seed) throws IOException {
+        List<Layer> layers = PROFILES.get(profile);
+        if (layers == null) {
+            throw new IllegalArgumentException("Unknown profile " + profile
+                    + ", expected one of " + PROFILES.keySet());
+        }
+
+        DeviceTree tree = new DeviceTree(root);
+        Random random = new Random(seed);
+        byte[] header = new byte[HEADER_SIZE];
+        for (Layer layer : layers) {
+            File top = new File(root, layer.dir);
+            tree.tops.add(top);
+            int count = Math.max(1, (int) Math.round(layer.count * scale));
+            int directories = (count + layer.filesPerDir - 1) / layer.filesPerDir;
+            // Enough subdirectories per level to hold every directory at the bottom
+            int fanOut = 1;
+            if (layer.depth > 0) {
+                fanOut = Math.max(2, (int) Math.ceil(Math.pow(directories, 1.0 / layer.depth)));
+            }
+
+            for (int i = 0; i < count; i++) {
+                File dir = directory(top, i / layer.filesPerDir, layer.depth, fanOut);
+                File file = new File(dir, String.format("%s-%06d%s",
+                        top.getName().toLowerCase(), i, layer.extension));
+                long size = layer.minSize + (long) (random.nextDouble()
+                        * (layer.maxSize - layer.minSize));
+                size = Math.max(1, (long) (size * sizeScale));
+
+                random.nextBytes(header);
+                write(file, size, header);
+                if (!file.setLastModified(BASE_TIME - i * 60000L)) {
+                    throw new IOException("Could not set the time of " + file);
+                }
+                tree.files.add(file);
+                tree.totalBytes += size;
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Rewrites the header of the given fraction of the files, chosen at random, and moves their
+     * modification times on, as if they had been edited.
+     *
+     * @return the number of files changed
+     */
+    public int change(double fraction, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<File> shuffled = new ArrayList<>(files);
+        Collections.shuffle(shuffled, random);
+        int count = (int) Math.round(files.size() * fraction);
+        byte[] header = new byte[HEADER_SIZE];
+        for (File file : shuffled.subList(0, count)) {
+            long lastModified = file.lastModified();
+            random.nextBytes(header);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.write(header, 0, (int) Math.min(header.length, raf.length()));
+            }
+            if (!file.setLastModified(lastModified + 1000)) {
+                throw new IOException("Could not set the time of " + file);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the whole tree.
+     */
+    public void delete() {
+        delete(root);
+    }
+
+    // Returns the index-th directory of a layer, depth levels below top
+    private static File directory(File top, int index, int depth, int fanOut) throws IOException {
+        File dir = top;
+        String[] names = new String[depth];
+        for (int level = depth - 1; level >= 0; level--) {
+            names[level] = "d" + (level + 1) + "-" + (index % fanOut);
+            index /= fanOut;
+        }
+        for (String name : names) {
+            dir = new File(dir, name);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    private static void write(File file, long size, byte[] header) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            raf.write(header, 0, (int) Math.min(header.length, size));
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
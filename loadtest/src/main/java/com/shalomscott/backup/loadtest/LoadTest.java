@@ -0,0 +1,217 @@
+package com.shalomscott.backup.loadtest;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.Parameter;
+import com.martiansoftware.jsap.SimpleJSAP;
+import com.martiansoftware.jsap.Switch;
+import com.shalomscott.backup.Utils.BackupEngine;
+import com.shalomscott.backup.Utils.BackupOptions;
+import com.shalomscott.backup.Utils.BackupPipeline;
+import com.shalomscott.backup.Utils.FakeDriveBackend;
+import com.shalomscott.backup.Utils.HashIndex;
+import com.shalomscott.backup.Utils.JsapParser;
+import com.shalomscott.backup.Utils.LocalFiles;
+import com.shalomscott.backup.Utils.RunStats;
+import com.shalomscott.backup.Utils.Settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Runs full backups of a generated device tree against a fake Drive, and reports how each
+ * went. Every scenario runs three passes over the same tree and remote:
+ * <ol>
+ * <li>first - nothing is backed up yet, so every file is uploaded</li>
+ * <li>rerun - nothing changed, so every file is only checked</li>
+ * <li>changed - a small fraction of the files was edited and is uploaded again</li>
+ * </ol>
+ * For each pass it prints files and megabytes per second, peak heap, the calls made to the
+ * fake Drive and the time spent in hasFileChanged, getFolder and uploadFile. With --reports
+ * it also writes each pass's full run report.
+ */
+public class LoadTest {
+    private static final String[] PASSES = {"first", "rerun", "changed"};
+    private static final double MB = 1024 * 1024;
+
+    private final JSAPResult config;
+    private final File reportDir;
+
+    private LoadTest(JSAPResult config) {
+        this.config = config;
+        reportDir = config.contains("reports") ? new File(config.getString("reports")) : null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimpleJSAP jsap = newParser();
+        JSAPResult config = jsap.parse(args);
+        if (jsap.messagePrinted()) {
+            System.exit(config.success() ? 0 : 1);
+        }
+        new LoadTest(config).run();
+    }
+
+    private static SimpleJSAP newParser() throws JSAPException {
+        return new SimpleJSAP("loadtest",
+                "Backs up generated device trees against a fake Drive and reports throughput.",
+                new Parameter[]{
+                        new FlaggedOption("profile", JSAP.STRING_PARSER, "sdcard", false, 'p',
+                                "profile", "Tree to back up, one of "
+                                + DeviceTree.PROFILES.keySet()).setAllowMultipleDeclarations(true),
+                        new FlaggedOption("scale", JSAP.DOUBLE_PARSER, "1", false, 's',
+                                "scale", "Multiplies the number of files in the tree"),
+                        new FlaggedOption("sizeScale", JSAP.DOUBLE_PARSER, "1", false,
+                                JSAP.NO_SHORTFLAG, "size-scale",
+                                "Multiplies the size of every file in the tree"),
+                        new FlaggedOption("latency", JSAP.LONG_PARSER, "100", false, 'l',
+                                "latency", "Round trip of each Drive call, in ms"),
+                        new FlaggedOption("jitter", JSAP.LONG_PARSER, "50", false, 'j',
+                                "jitter", "Most extra time added to a call at random, in ms"),
+                        new FlaggedOption("bandwidth", JSAP.LONG_PARSER, "0", false, 'b',
+                                "bandwidth", "Bytes per second each upload streams at (0 for "
+                                + "unlimited)"),
+                        new FlaggedOption("hashThreads", JSAP.INTEGER_PARSER,
+                                Integer.toString(Runtime.getRuntime().availableProcessors()),
+                                false, JSAP.NO_SHORTFLAG, "hash-threads", "Hash stage workers"),
+                        new FlaggedOption("uploadThreads", JSAP.INTEGER_PARSER,
+                                Integer.toString(Settings.DEFAULT_UPLOAD_THREADS), false,
+                                JSAP.NO_SHORTFLAG, "upload-threads", "Upload stage workers"),
+                        new FlaggedOption("queueSize", JSAP.INTEGER_PARSER,
+                                Integer.toString(Settings.DEFAULT_QUEUE_SIZE), false,
+                                JSAP.NO_SHORTFLAG, "queue-size", "Files queued between stages"),
+                        new FlaggedOption("changed", JSAP.DOUBLE_PARSER, "1", false, 'c',
+                                "changed", "Percent of the files edited before the last pass"),
+                        new FlaggedOption("seed", JSAP.LONG_PARSER, "42", false,
+                                JSAP.NO_SHORTFLAG, "seed", "Seeds the tree, edits and jitter"),
+                        new FlaggedOption("workDir", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false,
+                                'w', "work-dir", "Where trees are generated (a temporary "
+                                + "directory by default)"),
+                        new FlaggedOption("reports", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false,
+                                'r', "reports", "Directory to write each pass's run report to"),
+                        new Switch("paranoid", JSAP.NO_SHORTFLAG, "paranoid",
+                                "Back up as a --paranoid line, hashing every file on reruns"),
+                        new Switch("keep", JSAP.NO_SHORTFLAG, "keep",
+                                "Keep the generated trees afterwards")
+                });
+    }
+
+    private void run() throws Exception {
+        File workDir = config.contains("workDir") ? new File(config.getString("workDir"))
+                : Files.createTempDirectory("backup-loadtest").toFile();
+        if (reportDir != null && !reportDir.isDirectory() && !reportDir.mkdirs()) {
+            throw new IOException("Could not create " + reportDir);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%-8s %-8s %8s %8s %9s %8s %9s %9s %7s %10s %10s %10s",
+                "scenario", "pass", "files", "uploaded", "files/s", "MB/s", "seconds",
+                "peak MB", "calls", "changed s", "folder s", "upload s"));
+        for (String profile : config.getStringArray("profile")) {
+            runScenario(profile, new File(workDir, profile));
+        }
+    }
+
+    private void runScenario(String profile, File root) throws Exception {
+        long seed = config.getLong("seed");
+        long start = System.nanoTime();
+        DeviceTree tree = DeviceTree.generate(profile, root, config.getDouble("scale"),
+                config.getDouble("sizeScale"), seed);
+        System.out.println(String.format(Locale.US, "# %s: %d files, %.0f MB, generated in %.1fs",
+                profile, tree.files.size(), tree.totalBytes / MB,
+                (System.nanoTime() - start) / 1e9));
+
+        File indexDir = new File(root, ".index");
+        if (!indexDir.isDirectory() && !indexDir.mkdirs()) {
+            throw new IOException("Could not create " + indexDir);
+        }
+        HashIndex index = HashIndex.load(indexDir);
+        FakeDriveBackend backend = new FakeDriveBackend(seed);
+        backend.setLatency(config.getLong("latency"), config.getLong("jitter"));
+        backend.setBandwidth(config.getLong("bandwidth"));
+
+        try {
+            for (String pass : PASSES) {
+                if (pass.equals("changed")) {
+                    tree.change(config.getDouble("changed") / 100, seed + 1);
+                }
+                runPass(profile, pass, tree, index, backend);
+            }
+        } finally {
+            index.close();
+            if (!config.getBoolean("keep")) {
+                tree.delete();
+            }
+        }
+    }
+
+    private void runPass(String profile, String pass, DeviceTree tree, HashIndex index,
+                         FakeDriveBackend backend) throws Exception {
+        long callsBefore = backend.getCallCount();
+        System.gc();
+        resetPeakHeap();
+
+        RunStats stats = RunStats.start();
+        long start = System.nanoTime();
+        BackupPipeline<FakeDriveBackend.Folder> pipeline = new BackupPipeline<>(
+                new BackupEngine<FakeDriveBackend.Folder>(backend, index, tree.root),
+                config.getInt("hashThreads"),
+                config.getInt("uploadThreads"), config.getInt("queueSize"));
+        pipeline.start();
+        // Each layer of the tree is a line of 'backup'
+        for (int i = 0; i < tree.tops.size(); i++) {
+            File top = tree.tops.get(i);
+            String line = LocalFiles.getRelativePath(tree.root, top)
+                    + (config.getBoolean("paranoid") ? " --paranoid" : "");
+            pipeline.walk(top, null, new BackupOptions(JsapParser.getInstance().parse(line),
+                    i + 1), null);
+        }
+        pipeline.finish();
+        index.flush();
+        stats.phase(RunStats.PHASE_RUN, start);
+        if (pipeline.getError() != null) {
+            throw pipeline.getError();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long scanned = stats.get(RunStats.FILES_SCANNED);
+        System.out.println(String.format(Locale.US,
+                "%-8s %-8s %8d %8d %9.0f %8.1f %9.1f %9.0f %7d %10.1f %10.1f %10.1f",
+                profile, pass, scanned, stats.get(RunStats.FILES_UPLOADED), scanned / seconds,
+                stats.get(RunStats.BYTES_SENT) / MB / seconds, seconds, getPeakHeap() / MB,
+                backend.getCallCount() - callsBefore,
+                stats.getPhaseNanos(RunStats.PHASE_HAS_CHANGED) / 1e9,
+                stats.getPhaseNanos(RunStats.PHASE_GET_FOLDER) / 1e9,
+                stats.getPhaseNanos(RunStats.PHASE_UPLOAD) / 1e9));
+
+        if (reportDir != null) {
+            stats.writeReport(new File(reportDir, profile + "-" + pass + ".json"), "completed",
+                    pipeline.getStats());
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // The sum of each heap pool's peak, which may overstate the heap's own peak a little
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}